@@ -7,11 +7,25 @@ public class Config {
 	public static final int MAX_SEARCH_DEPTH = getProperty("maxSearchDepth", 40);
 
 	/**
-	 * Capacity per piece type and color. Engine will fail when too many pieces of the same type exist at once.
-	 * Increase this all the way up to 9 for some theoretical positions with many promotions like this:
-	 * R6R/3Q4/1Q4Q1/4Q3/2Q4Q/Q4Q2/pp1Q4/kBNN1KB1 w - - 0 1
- 	 */
-	public static final int PIECE_LIST_CAPACITY = getProperty("pieceListCapacity", 5);
+	 * Use magic bitboards instead of 0x88 ray walking for sliding pieces moves, attacks and pins.
+	 * Both produce the same moves. This is kept switchable to verify and benchmark one against the other.
+	 */
+	public static final boolean BITBOARDS = getProperty("bitboards", false);
+
+	/**
+	 * Initial size of transposition table in megabytes. Can be changed with UCI Hash option.
+	 */
+	public static final int HASH_MEGABYTES = getProperty("hash", 16);
+
+	/**
+	 * Initial number of search threads. Can be changed with UCI Threads option.
+	 */
+	public static final int THREADS = getProperty("threads", 1);
+
+	/**
+	 * Size of perft cache in megabytes used by "perft [depth] hash" command
+	 */
+	public static final int PERFT_HASH_MEGABYTES = getProperty("perftHash", 64);
 
 	public static final int NODES_LOGGING_PERIOD = getProperty("nodesLoggingPeriod", 500_000);
 
@@ -21,11 +35,6 @@ public class Config {
 		return getProperty(DEBUG_LINE_KEY, null);
 	}
 
-	/**
-	 * Move generation will fail if given position has more immediate children than this number
-	 */
-	public static int MOVES_LIST_CAPACITY =  getProperty("movesListCapacity", 60);
-
 	/**
 	 * Used in calculation of time devoted to next move
 	 */
@@ -36,6 +45,11 @@ public class Config {
 		return value != null ? value : defaultValue;
 	}
 
+	private static boolean getProperty(String key, boolean defaultValue) {
+		String value = System.getProperty(key);
+		return value != null ? Boolean.parseBoolean(value) : defaultValue;
+	}
+
 	private static int getProperty(String key, int defaultValue) {
 		String value = System.getProperty(key);
 		int intVal = defaultValue;
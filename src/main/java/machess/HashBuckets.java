@@ -0,0 +1,33 @@
+package machess;
+
+/**
+ * Layout shared by {@link TranspositionTable} and {@link PerftCache}: a long[] of buckets, each holding two entries of
+ * two longs. Number of buckets is a power of two so that the low bits of a zobrist key select a bucket.
+ */
+final class HashBuckets {
+	static final int LONGS_PER_ENTRY 	= 2;
+	static final int LONGS_PER_BUCKET 	= 2 * LONGS_PER_ENTRY;
+	static final int BYTES_PER_BUCKET 	= LONGS_PER_BUCKET * Long.BYTES;
+
+	private HashBuckets() {}
+
+	/**
+	 * @return entries of the largest power-of-two number of buckets that fits in given size
+	 */
+	static long[] allocate(int megabytes) {
+		long buckets = Long.highestOneBit(Math.max(1L, (long) megabytes * 1024 * 1024 / BYTES_PER_BUCKET));
+		buckets = Math.min(buckets, Integer.highestOneBit(Integer.MAX_VALUE / LONGS_PER_BUCKET));
+		return new long[(int) buckets * LONGS_PER_BUCKET];
+	}
+
+	static int bucketsMask(long[] entries) {
+		return entries.length / LONGS_PER_BUCKET - 1;
+	}
+
+	/**
+	 * @return index of the first long of the bucket
+	 */
+	static int bucketIndex(long zobristKey, int bucketsMask) {
+		return ((int) zobristKey & bucketsMask) * LONGS_PER_BUCKET;
+	}
+}
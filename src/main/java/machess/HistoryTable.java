@@ -0,0 +1,49 @@
+package machess;
+
+import java.util.Arrays;
+
+/**
+ * Butterfly history - https://www.chessprogramming.org/History_Heuristic
+ * Scores of quiet moves indexed by side to move and from/to squares. A quiet move that causes a beta cutoff gets
+ * depth * depth added to its score. Scores are halved between searches so that old cutoffs matter less.
+ */
+class HistoryTable {
+	private static final int FROM_TO_MASK = 0x3FFF;
+	private static final int SIDE_BIT_OFFSET = 14;
+
+	/**
+	 * When exceeded all scores are halved so that they don't overflow
+	 */
+	private static final int MAX_SCORE = 1 << 24;
+
+	private final int[] scores = new int[2 << SIDE_BIT_OFFSET];
+
+	int get(boolean whiteTurn, int move) {
+		return scores[index(whiteTurn, move)];
+	}
+
+	void onCutoff(boolean whiteTurn, int move, int depth) {
+		int index = index(whiteTurn, move);
+		scores[index] += depth * depth;
+		if (scores[index] > MAX_SCORE) {
+			age();
+		}
+	}
+
+	/**
+	 * Called between searches
+	 */
+	void age() {
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] >>= 1;
+		}
+	}
+
+	void clear() {
+		Arrays.fill(scores, 0);
+	}
+
+	private static int index(boolean whiteTurn, int move) {
+		return (whiteTurn ? 0 : 1 << SIDE_BIT_OFFSET) | (move & FROM_TO_MASK);
+	}
+}
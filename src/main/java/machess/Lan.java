@@ -4,7 +4,6 @@ import machess.board0x88.Square0x88;
 import machess.board8x8.Rank;
 
 import static machess.Content.*;
-import static machess.Content.BLACK_QUEEN;
 
 /**
  * Parser/formater for moves in Long Algebraic Notation as used in UCI
@@ -22,28 +21,39 @@ public class Lan {
      * @return state after the move is made
      */
     public static State move(State state, String move) {
+        return state.fromMove(parse(state, move));
+    }
+
+    /**
+     * @param state state before move is made
+     * @param move - move given in long algebraic notation
+     * @return move packed by {@link Move}
+     */
+    public static int parse(State state, String move) {
+        byte from = getFrom(move);
+        byte to = getTo(move);
         if (isPromotion(move)) {
-            return state.fromPseudoLegalMoveWithPromotion(getFrom(move), getTo(move), getPromotion(move));
-        } else if (isQsCastling(state, move)) {
-            return state.fromLegalQueensideCastling(getFrom(move), getTo(move));
-        } else if (isKsCastling(state, move)) {
-            return state.fromLegalKingsideCastling(getFrom(move), getTo(move));
+            return Move.promotion(from, to, getPromotion(move));
+        } else if (isQsCastling(state, move) || isKsCastling(state, move)) {
+            return Move.castling(from, to);
         } else if (isDoublePush(state, move)) {
-            return state.fromPseudoLegalPawnDoublePush(getFrom(move), getTo(move), getEnPassantSquare(move));
+            return Move.doublePush(from, to);
+        } else if (isEnPassant(state, move)) {
+            return Move.enPassant(from, to);
         }
-        return state.fromPseudoLegalMove(getFrom(move), getTo(move));
-    }
-
-    private static byte getEnPassantSquare(String move) {
-        int fromFile = move.charAt(0) - 'a';
-        int fromRank = move.charAt(1) - '1';
-        return Square0x88.from07(fromFile, fromRank == Rank._2 ? Rank._3 : Rank._6);
+        return Move.of(from, to);
     }
 
     private static boolean isPromotion(String move) {
         return move.length() == 5;
     }
 
+    private static boolean isEnPassant(State state, String move) {
+        byte to = getTo(move);
+        Content movedPiece = state.getContent(getFrom(move));
+        return to == state.getEnPassantSquare() && (movedPiece == WHITE_PAWN || movedPiece == BLACK_PAWN);
+    }
+
     private static byte getFrom(String move) {
         return getSquare(move, 0, 1);
     }
@@ -90,12 +100,23 @@ public class Lan {
     }
 
     public static String toStringLastMove(State state) {
-        String fromTo = "" + Square0x88.toString(state.from) + Square0x88.toString(state.to);
+        return toString(state.from, state.to, state.promotion);
+    }
+
+    /**
+     * @param move - move packed by {@link Move}
+     */
+    public static String toString(int move) {
+        return toString(Move.getFrom(move), Move.getTo(move), Move.getPromotion(move));
+    }
+
+    private static String toString(byte from, byte to, Content promotion) {
+        String fromTo = "" + Square0x88.toString(from) + Square0x88.toString(to);
         fromTo = fromTo.toLowerCase();
-        if (state.promotion == null) {
+        if (promotion == null) {
             return fromTo;
         }
-        switch (state.promotion) {
+        switch (promotion) {
             case WHITE_KNIGHT:
             case BLACK_KNIGHT:
                 return  fromTo + Lan.KNIGHT;
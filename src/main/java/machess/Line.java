@@ -1,5 +1,6 @@
 package machess;
 
+import java.util.Arrays;
 import java.util.StringJoiner;
 
 /**
@@ -11,8 +12,15 @@ public class Line {
     public int movesCount = 0;
     public int movesMatched = 0;
 
-    public void updateSubline(Line newSubLine, State move) {
-        moves[0] = Lan.toStringLastMove(move);
+    /**
+     * @param move - move packed by {@link Move}
+     */
+    public void updateSubline(Line newSubLine, int move) {
+        if (newSubLine.movesCount >= moves.length) {
+            // check extensions and quiescence can go deeper than expected
+            moves = Arrays.copyOf(moves, 2 * (newSubLine.movesCount + 1));
+        }
+        moves[0] = Lan.toString(move);
 
         System.arraycopy(newSubLine.moves, 0, moves, 1, newSubLine.movesCount);
         movesCount = newSubLine.movesCount + 1;
@@ -26,6 +34,16 @@ public class Line {
         this.movesCount = movesSplit.length;
     }
 
+    /**
+     * @return copy with no moves matched
+     */
+    public Line copy() {
+        Line copy = new Line();
+        copy.moves = moves.clone();
+        copy.movesCount = movesCount;
+        return copy;
+    }
+
     public static Line empty() {
         return new Line();
     }
@@ -38,15 +56,39 @@ public class Line {
         return movesLan != null ? new Line(movesLan) : Line.empty();
     }
 
-    public boolean isMoveMatched(State move, int ply) {
+    /**
+     * @param state - state after the matched move was made
+     */
+    public boolean isMoveMatched(State state, int ply) {
+        return isMoveMatched(Lan.toStringLastMove(state), ply);
+    }
+
+    /**
+     * @param move - move packed by {@link Move}
+     */
+    public boolean isMoveMatched(int move, int ply) {
+        return isMoveMatched(Lan.toString(move), ply);
+    }
+
+    private boolean isMoveMatched(String moveLan, int ply) {
         if (ply - 1 == movesMatched // so that we match the move only at desired level
-                && movesMatched < moves.length && Lan.toStringLastMove(move).equals(moves[movesMatched])) {
+                && movesMatched < moves.length && moveLan.equals(moves[movesMatched])) {
             movesMatched++;
             return true;
         }
         return false;
     }
 
+    /**
+     * @return move of this line expected at given ply or null if the line wasn't matched up to that ply
+     */
+    public String getMoveToMatch(int ply) {
+        if (ply - 1 == movesMatched && movesMatched < movesCount) {
+            return moves[movesMatched];
+        }
+        return null;
+    }
+
     public boolean isLineMatched() {
         if (movesCount == movesMatched) {
             // once int overflows it could return false positives
@@ -0,0 +1,89 @@
+package machess;
+
+/**
+ * Move packed into an int. Used by make/unmake search instead of child State instances.
+ *
+ * Bit layout is
+ * -------- ---ECDpp pptttttt tfffffff
+ *
+ * f - from square (0x88)
+ * t - to square (0x88)
+ * p - promotion (Content.asByte, 0 if no promotion)
+ * D - pawn double push flag
+ * C - castling flag (king move)
+ * E - en passant capture flag
+ */
+public final class Move {
+	/**
+	 * Not a move. A1 -> A1
+	 */
+	public static final int NONE = 0;
+
+	private static final int SQUARE_MASK 		= 0x7F;
+	private static final int TO_BIT_OFFSET 		= 7;
+	private static final int PROMOTION_BIT_OFFSET = 14;
+	private static final int PROMOTION_MASK 	= 0x0F;
+
+	static final int DOUBLE_PUSH_FLAG 	= 0x04_0000;
+	static final int CASTLING_FLAG 		= 0x08_0000;
+	static final int EN_PASSANT_FLAG 	= 0x10_0000;
+
+	/**
+	 * Bits above are unused by moves. Move ordering may temporarily keep scores there.
+	 */
+	static final int MOVE_MASK 			= 0x1F_FFFF;
+
+	private Move() {}
+
+	static int of(byte from, byte to) {
+		return from | (to << TO_BIT_OFFSET);
+	}
+
+	static int promotion(byte from, byte to, Content promotion) {
+		return of(from, to) | (promotion.asByte << PROMOTION_BIT_OFFSET);
+	}
+
+	static int doublePush(byte from, byte to) {
+		return of(from, to) | DOUBLE_PUSH_FLAG;
+	}
+
+	static int castling(byte kingFrom, byte kingTo) {
+		return of(kingFrom, kingTo) | CASTLING_FLAG;
+	}
+
+	static int enPassant(byte from, byte to) {
+		return of(from, to) | EN_PASSANT_FLAG;
+	}
+
+	public static byte getFrom(int move) {
+		return (byte) (move & SQUARE_MASK);
+	}
+
+	public static byte getTo(int move) {
+		return (byte) ((move >>> TO_BIT_OFFSET) & SQUARE_MASK);
+	}
+
+	/**
+	 * @return promoted piece or null if this is not a promotion
+	 */
+	public static Content getPromotion(int move) {
+		int promotion = (move >>> PROMOTION_BIT_OFFSET) & PROMOTION_MASK;
+		return promotion != 0 ? Content.fromShort((short) promotion) : null;
+	}
+
+	public static boolean isPromotion(int move) {
+		return ((move >>> PROMOTION_BIT_OFFSET) & PROMOTION_MASK) != 0;
+	}
+
+	public static boolean isDoublePush(int move) {
+		return (move & DOUBLE_PUSH_FLAG) != 0;
+	}
+
+	public static boolean isCastling(int move) {
+		return (move & CASTLING_FLAG) != 0;
+	}
+
+	public static boolean isEnPassant(int move) {
+		return (move & EN_PASSANT_FLAG) != 0;
+	}
+}
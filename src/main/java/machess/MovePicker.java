@@ -0,0 +1,179 @@
+package machess;
+
+/**
+ * Yields moves of a search node stage by stage: PV move, captures (MVV-LVA), killer moves, the remaining quiet moves
+ * ordered by history and then captures that lose material by static exchange evaluation. A stage is generated only when
+ * the moves of previous stages didn't cause a cutoff.
+ */
+class MovePicker {
+	private static final int STAGE_PV_MOVE 			= 0;
+	private static final int STAGE_GENERATE_CAPTURES = 1;
+	private static final int STAGE_CAPTURES 		= 2;
+	private static final int STAGE_KILLER_1 		= 3;
+	private static final int STAGE_KILLER_2 		= 4;
+	private static final int STAGE_GENERATE_QUIETS 	= 5;
+	private static final int STAGE_QUIETS 			= 6;
+	private static final int STAGE_LOSING_CAPTURES 	= 7;
+	private static final int STAGE_DONE 			= 8;
+
+	private static final int MVV_LVA_BIT_OFFSET = 24;
+	private static final int PAWN_TYPE = Content.WHITE_PAWN.asByte & State.SquareFormat.PIECE_TYPE_MASK;
+	private static final int KING_TYPE = Content.WHITE_KING.asByte & State.SquareFormat.PIECE_TYPE_MASK;
+
+	private final int[] moves = new int[State.MAX_LEGAL_MOVES];
+	private int movesCount;
+	private int nextMoveIndex;
+
+	private final int[] losingCaptures = new int[State.MAX_LEGAL_MOVES];
+	private int losingCapturesCount;
+
+	private State state;
+	private int stage;
+	private int pvMove;
+	private int killer1;
+	private int killer2;
+	private HistoryTable history;
+
+	/**
+	 * @param pvMove - move to be tried first or {@link Move#NONE}. It's checked for legality.
+	 * @param killer1 - quiet move that caused a cutoff at the same ply or {@link Move#NONE}. It's checked for legality.
+	 * @param history - scores quiet moves that are not killers
+	 */
+	void init(State state, int pvMove, int killer1, int killer2, HistoryTable history) {
+		this.state = state;
+		this.pvMove = pvMove;
+		this.killer1 = killer1;
+		this.killer2 = killer2;
+		this.history = history;
+		stage = STAGE_PV_MOVE;
+	}
+
+	/**
+	 * @return next legal move or {@link Move#NONE} when there are no more moves
+	 */
+	@SuppressWarnings("fallthrough")
+	int next() {
+		switch (stage) {
+			case STAGE_PV_MOVE:
+				stage = STAGE_GENERATE_CAPTURES;
+				if (pvMove != Move.NONE && state.isLegalMove(pvMove)) {
+					return pvMove;
+				}
+				// fall through
+			case STAGE_GENERATE_CAPTURES:
+				movesCount = state.generateLegalMoves(moves, State.GeneratorMode.TACTICAL_MOVES);
+				sortByMvvLva(state, moves, movesCount);
+				nextMoveIndex = 0;
+				losingCapturesCount = 0;
+				stage = STAGE_CAPTURES;
+				// fall through
+			case STAGE_CAPTURES:
+				while (nextMoveIndex < movesCount) {
+					int move = moves[nextMoveIndex++];
+					if (move == pvMove) {
+						continue;
+					}
+					if (!state.isExchangeAtLeast(move, 0)) {
+						losingCaptures[losingCapturesCount++] = move;
+						continue;
+					}
+					return move;
+				}
+				stage = STAGE_KILLER_1;
+				// fall through
+			case STAGE_KILLER_1:
+				stage = STAGE_KILLER_2;
+				if (isKillerPlayable(killer1)) {
+					return killer1;
+				}
+				// fall through
+			case STAGE_KILLER_2:
+				stage = STAGE_GENERATE_QUIETS;
+				if (isKillerPlayable(killer2)) {
+					return killer2;
+				}
+				// fall through
+			case STAGE_GENERATE_QUIETS:
+				movesCount = state.generateLegalMoves(moves, State.GeneratorMode.QUIET_MOVES);
+				nextMoveIndex = 0;
+				stage = STAGE_QUIETS;
+				// fall through
+			case STAGE_QUIETS:
+				while (nextMoveIndex < movesCount) {
+					int move = pickBestHistoryMove();
+					if (move != pvMove && move != killer1 && move != killer2) {
+						return move;
+					}
+				}
+				nextMoveIndex = 0;
+				stage = STAGE_LOSING_CAPTURES;
+				// fall through
+			case STAGE_LOSING_CAPTURES:
+				if (nextMoveIndex < losingCapturesCount) {
+					return losingCaptures[nextMoveIndex++];
+				}
+				stage = STAGE_DONE;
+				// fall through
+			default:
+				return Move.NONE;
+		}
+	}
+
+	private boolean isKillerPlayable(int killer) {
+		return killer != Move.NONE && killer != pvMove && state.isQuiet(killer) && state.isLegalMove(killer);
+	}
+
+	/**
+	 * Selection sort step - moves the quiet move with the highest history score to nextMoveIndex and returns it.
+	 */
+	private int pickBestHistoryMove() {
+		boolean whiteTurn = state.test(State.WHITE_TURN);
+		int bestIndex = nextMoveIndex;
+		int bestScore = history.get(whiteTurn, moves[bestIndex]);
+		for (int i = nextMoveIndex + 1; i < movesCount; i++) {
+			int score = history.get(whiteTurn, moves[i]);
+			if (score > bestScore) {
+				bestScore = score;
+				bestIndex = i;
+			}
+		}
+		int best = moves[bestIndex];
+		moves[bestIndex] = moves[nextMoveIndex];
+		moves[nextMoveIndex++] = best;
+		return best;
+	}
+
+	/**
+	 * MVV-LVA - https://www.chessprogramming.org/MVV-LVA
+	 * Sorts tactical moves by most valuable victim first and least valuable attacker among equal victims. Promotions count
+	 * as capturing the promoted piece. Scores are put into unused high bits of the moves, so that moves are sorted
+	 * in place as plain ints, and are cleared afterwards.
+	 */
+	static void sortByMvvLva(State state, int[] moves, int movesCount) {
+		for (int i = 0; i < movesCount; i++) {
+			moves[i] |= mvvLva(state, moves[i]) << MVV_LVA_BIT_OFFSET;
+		}
+		// insertion sort - few captures are generated and it keeps generator order of equal scores
+		for (int i = 1; i < movesCount; i++) {
+			int move = moves[i];
+			int j = i - 1;
+			for (; j >= 0 && moves[j] < move; j--) {
+				moves[j + 1] = moves[j];
+			}
+			moves[j + 1] = move;
+		}
+		for (int i = 0; i < movesCount; i++) {
+			moves[i] &= Move.MOVE_MASK;
+		}
+	}
+
+	private static int mvvLva(State state, int move) {
+		int victim = Move.isEnPassant(move) ? PAWN_TYPE : state.getContent(Move.getTo(move)).asByte & State.SquareFormat.PIECE_TYPE_MASK;
+		Content promotion = Move.getPromotion(move);
+		if (promotion != null) {
+			victim += promotion.asByte & State.SquareFormat.PIECE_TYPE_MASK;
+		}
+		int attacker = state.getContent(Move.getFrom(move)).asByte & State.SquareFormat.PIECE_TYPE_MASK;
+		return (victim << 3) + KING_TYPE - attacker;
+	}
+}
@@ -0,0 +1,127 @@
+package machess;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Perft with the tree split into ForkJoin tasks at the root and at shallow plies. Idle threads steal subtrees of busy
+ * ones so that uneven subtrees don't leave threads waiting. Subtrees below the split plies are walked by
+ * {@link Scorer#perft}.
+ */
+public class ParallelPerft {
+	/**
+	 * Nodes at plies below this one are split into tasks
+	 */
+	private static final int SPLIT_PLIES = 2;
+	/**
+	 * Subtrees this shallow are too small to be worth a task
+	 */
+	private static final int MIN_SPLIT_DEPTH = 2;
+
+	private ParallelPerft() {}
+
+	public static long perft(State state, int depth, State.GeneratorMode mode, int threads) {
+		return perft(state, depth, mode, threads, null);
+	}
+
+	/**
+	 * @param cache - nullable cache of subtrees counts shared by all threads
+	 */
+	public static long perft(State state, int depth, State.GeneratorMode mode, int threads, PerftCache cache) {
+		if (depth < 1) {
+			return 1;
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return pool.invoke(new PerftTask(state.copy(), depth, mode, 0, cache));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Prints leaf nodes count of every root move like {@link Scorer#perftDivide}, followed by total, time and cache hit
+	 * rate.
+	 * @param cache - nullable cache of subtrees counts shared by all threads
+	 */
+	public static void perftDivide(State state, int depth, State.GeneratorMode mode, int threads, PerftCache cache) {
+		if (depth < 1) {
+			System.out.println("nothing to divide");
+			return;
+		}
+		long before = System.nanoTime();
+		int[] moves = new int[State.MAX_LEGAL_MOVES];
+		int legalMovesCount = state.generateLegalMoves(moves, State.GeneratorMode.ALL_MOVES);
+		PerftTask[] tasks = new PerftTask[legalMovesCount];
+		for (int i = 0; i < legalMovesCount; i++) {
+			tasks[i] = new PerftTask(state.fromMove(moves[i]), depth - 1, mode, 1, cache);
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long total = 0;
+		try {
+			for (PerftTask task : tasks) {
+				pool.execute(task);
+			}
+			System.out.println("divide(" + depth + "):");
+			for (int i = 0; i < legalMovesCount; i++) {
+				long movesCount = tasks[i].join();
+				total += movesCount;
+				System.out.println(Lan.toString(moves[i]) + " " + movesCount);
+			}
+		} finally {
+			pool.shutdown();
+		}
+		long millis = (System.nanoTime() - before) / 1_000_000;
+		System.out.println("total " + total + " time " + millis + " threads " + threads
+				+ (cache != null ? " " + cache : ""));
+	}
+
+	private static class PerftTask extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+
+		private final State state;
+		private final int depth;
+		private final State.GeneratorMode mode;
+		private final int ply;
+		private final PerftCache cache;
+
+		PerftTask(State state, int depth, State.GeneratorMode mode, int ply, PerftCache cache) {
+			this.state = state;
+			this.depth = depth;
+			this.mode = mode;
+			this.ply = ply;
+			this.cache = cache;
+		}
+
+		@Override
+		protected Long compute() {
+			if (depth < 1) {
+				return 1L;
+			}
+			if (ply >= SPLIT_PLIES || depth <= MIN_SPLIT_DEPTH) {
+				return Scorer.perft(state, depth, mode, cache);
+			}
+			if (cache != null) {
+				long cachedCount = cache.probe(state.getZobristKey(), depth);
+				if (cachedCount != PerftCache.MISS) {
+					return cachedCount;
+				}
+			}
+			int[] moves = new int[State.MAX_LEGAL_MOVES];
+			int legalMovesCount = state.generateLegalMoves(moves, State.GeneratorMode.ALL_MOVES);
+			PerftTask[] subtasks = new PerftTask[legalMovesCount];
+			for (int i = 0; i < legalMovesCount; i++) {
+				subtasks[i] = new PerftTask(state.fromMove(moves[i]), depth - 1, mode, ply + 1, cache);
+			}
+			invokeAll(subtasks);
+			long movesCount = 0;
+			for (PerftTask subtask : subtasks) {
+				movesCount += subtask.join();
+			}
+			if (cache != null) {
+				cache.store(state.getZobristKey(), depth, movesCount);
+			}
+			return movesCount;
+		}
+	}
+}
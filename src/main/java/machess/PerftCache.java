@@ -0,0 +1,74 @@
+package machess;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import static machess.HashBuckets.*;
+
+/**
+ * Leaf nodes counts of perft subtrees indexed by zobrist key and depth so that transpositions are counted only once.
+ * Buckets of two entries like in {@link TranspositionTable}: depth-preferred and always-replace. Entry is two longs: key
+ * XOR data and data packed as count << 8 | depth so that it can be shared by threads of {@link ParallelPerft}.
+ *
+ * Counts depend on generator mode, so a cache must not be shared by perfts run in different modes.
+ */
+public class PerftCache {
+	public static final long MISS = -1;
+
+	private static final int DEPTH_MASK = 0xFF;
+	private static final int COUNT_BIT_OFFSET = 8;
+
+	private final long[] entries;
+	private final int bucketsMask;
+
+	private final LongAdder probes = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+
+	public PerftCache(int megabytes) {
+		entries = HashBuckets.allocate(megabytes);
+		bucketsMask = HashBuckets.bucketsMask(entries);
+	}
+
+	/**
+	 * @return leaf nodes count or {@link #MISS}
+	 */
+	long probe(long zobristKey, int depth) {
+		probes.increment();
+		int bucket = bucketIndex(zobristKey, bucketsMask);
+		for (int entry = bucket; entry < bucket + LONGS_PER_BUCKET; entry += LONGS_PER_ENTRY) {
+			long data = entries[entry + 1];
+			if ((entries[entry] ^ data) == zobristKey && (data & DEPTH_MASK) == depth) {
+				hits.increment();
+				return data >>> COUNT_BIT_OFFSET;
+			}
+		}
+		return MISS;
+	}
+
+	void store(long zobristKey, int depth, long count) {
+		assert depth <= DEPTH_MASK && count >= 0 && count >>> (Long.SIZE - COUNT_BIT_OFFSET) == 0
+				: "Can't store depth: " + depth + " count: " + count;
+		int bucket = bucketIndex(zobristKey, bucketsMask);
+		if ((entries[bucket + 1] & DEPTH_MASK) > depth) {
+			bucket += LONGS_PER_ENTRY;
+		}
+		long data = count << COUNT_BIT_OFFSET | depth;
+		entries[bucket] = zobristKey ^ data;
+		entries[bucket + 1] = data;
+	}
+
+	public long getProbes() {
+		return probes.sum();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@Override
+	public String toString() {
+		long probesCount = getProbes();
+		long hitsCount = getHits();
+		long permille = probesCount > 0 ? hitsCount * 1000 / probesCount : 0;
+		return "cache hits " + hitsCount + "/" + probesCount + " (" + permille / 10 + "." + permille % 10 + "%)";
+	}
+}
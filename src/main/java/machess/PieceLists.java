@@ -2,442 +2,233 @@ package machess;
 
 import machess.board0x88.Square0x88;
 
-import java.util.ArrayList;
-import java.util.List;
-
+/**
+ * Squares of all pieces kept in one byte array so that copying is a single System.arraycopy(). The array consists of:
+ * - counts of pieces indexed by Content.asByte
+ * - piece lists - fixed slots for each piece type. There's room for every pawn promoted to the same piece type.
+ * - slot of the piece on each square (0x88) so that a piece is found on its list without searching
+ */
 public class PieceLists {
-    @Override
-    public String toString() {
-        StringBuilder sb = new StringBuilder();
-        return sb.append("White: ")
-                .append("king:").append(Square0x88.toString(whiteKing)).append(' ')
-                .append(toString("Pawns:", whitePawns, whitePawnsCount))
-                .append(toString("Knights:", whiteKnights, whiteKnightsCount))
-                .append(toString("Bishops:", whiteBishops, whiteBishopsCount))
-                .append(toString("Rooks:", whiteRooks, whiteRooksCount))
-                .append(toString("Queens:", whiteQueens, whiteQueensCount))
-                .append('\n')
-                .append("Black: ")
-                .append("king:").append(Square0x88.toString(blackKing)).append(' ')
-                .append(toString("Pawns:", blackPawns, blackPawnsCount))
-                .append(toString("Knights:", blackKnights, blackKnightsCount))
-                .append(toString("Bishops:", blackBishops, blackBishopsCount))
-                .append(toString("Rooks:", blackRooks, blackRooksCount))
-                .append(toString("Queens:", blackQueens, blackQueensCount))
-                .append('\n').toString();
-    }
-
-    private StringBuilder toString(String header, byte[] pieceList, int piecesCount) {
-        StringBuilder sb = new StringBuilder(header);
-        sb.append('(').append(piecesCount).append(")[");
-        for (int i = 0; i < piecesCount; i++) {
-            sb.append(Square0x88.toString(pieceList[i])).append(',');
+    private static final int[] CAPACITIES = new int[16];
+    private static final int[] FIRST_SLOTS = new int[16];
+    private static final int SLOTS_OF_SQUARES_OFFSET;
+    private static final int SIZE;
+
+    static {
+        for (Content piece : Content.values()) {
+            switch (piece) {
+                case WHITE_PAWN:
+                case BLACK_PAWN:
+                    CAPACITIES[piece.asByte] = 8;
+                    break;
+                case WHITE_KNIGHT:
+                case BLACK_KNIGHT:
+                case WHITE_BISHOP:
+                case BLACK_BISHOP:
+                case WHITE_ROOK:
+                case BLACK_ROOK:
+                    CAPACITIES[piece.asByte] = 2 + 8;
+                    break;
+                case WHITE_QUEEN:
+                case BLACK_QUEEN:
+                    CAPACITIES[piece.asByte] = 1 + 8;
+                    break;
+                case WHITE_KING:
+                case BLACK_KING:
+                    CAPACITIES[piece.asByte] = 1;
+                    break;
+            }
         }
-        return sb.append("] ");
+        int slot = CAPACITIES.length;
+        for (int piece = 0; piece < CAPACITIES.length; piece++) {
+            FIRST_SLOTS[piece] = slot;
+            slot += CAPACITIES[piece];
+        }
+        SLOTS_OF_SQUARES_OFFSET = slot;
+        SIZE = SLOTS_OF_SQUARES_OFFSET + 128;
     }
 
-    private byte whiteKing;
-    private byte blackKing;
-
-    final byte[] whitePawns;
-    // TODO remove count and capacity for all pieces. No need for it as the arrays are copied for every makeMove() anyway.
-    byte whitePawnsCount;
-    final byte[] blackPawns;
-    byte blackPawnsCount;
-    
-    final byte[] whiteKnights;
-    byte whiteKnightsCount;
-    final byte[] blackKnights;
-    byte blackKnightsCount;
-    
-    final byte[] whiteBishops;
-    byte whiteBishopsCount;
-    final byte[] blackBishops;
-    byte blackBishopsCount;
-    
-    final byte[] whiteRooks;
-    byte whiteRooksCount;
-    final byte[] blackRooks;
-    byte blackRooksCount;
-    
-    final byte[] whiteQueens;
-    byte whiteQueensCount;
-    final byte[] blackQueens;
-    byte blackQueensCount;
+    private final byte[] lists;
 
-    private PieceLists(byte whiteKing, byte blackKing,
-               byte[] whitePawns, byte whitePawnsCount, byte[] blackPawns, byte blackPawnsCount,
-               byte[] whiteKnights, byte whiteKnightsCount, byte[] blackKnights, byte blackKnightsCount,
-               byte[] whiteBishops, byte whiteBishopsCount, byte[] blackBishops, byte blackBishopsCount,
-               byte[] whiteRooks, byte whiteRooksCount, byte[] blackRooks, byte blackRooksCount,
-               byte[] whiteQueens, byte whiteQueensCount, byte[] blackQueens, byte blackQueensCount) {
-        this.whiteKing = whiteKing;
-        this.blackKing = blackKing;
-        this.whitePawns = whitePawns;
-        this.whitePawnsCount = whitePawnsCount;
-        this.blackPawns = blackPawns;
-        this.blackPawnsCount = blackPawnsCount;
-        this.whiteKnights = whiteKnights;
-        this.whiteKnightsCount = whiteKnightsCount;
-        this.blackKnights = blackKnights;
-        this.blackKnightsCount = blackKnightsCount;
-        this.whiteBishops = whiteBishops;
-        this.whiteBishopsCount = whiteBishopsCount;
-        this.blackBishops = blackBishops;
-        this.blackBishopsCount = blackBishopsCount;
-        this.whiteRooks = whiteRooks;
-        this.whiteRooksCount = whiteRooksCount;
-        this.blackRooks = blackRooks;
-        this.blackRooksCount = blackRooksCount;
-        this.whiteQueens = whiteQueens;
-        this.whiteQueensCount = whiteQueensCount;
-        this.blackQueens = blackQueens;
-        this.blackQueensCount = blackQueensCount;
+    private PieceLists(byte[] lists) {
+        this.lists = lists;
     }
 
     public PieceLists() {
-        whiteKing = Square0x88.E1;
-        blackKing = Square0x88.E8;
-
-        whitePawns = new byte[] {
-                Square0x88.A2, Square0x88.B2, Square0x88.C2, Square0x88.D2, Square0x88.E2, Square0x88.F2, Square0x88.G2, Square0x88.H2
-        };
-        whitePawnsCount = 8;
-
-        blackPawns = new byte[] {
-                Square0x88.A7, Square0x88.B7, Square0x88.C7, Square0x88.D7, Square0x88.E7, Square0x88.F7, Square0x88.G7, Square0x88.H7
-        };
-        blackPawnsCount = 8;
-
-        whiteKnights = new byte[Config.PIECE_LIST_CAPACITY];
-        whiteKnightsCount = 2;
-        whiteKnights[0] = Square0x88.B1;
-        whiteKnights[1] = Square0x88.G1;
-        blackKnights = new byte[Config.PIECE_LIST_CAPACITY];
-        blackKnightsCount = 2;
-        blackKnights[0] = Square0x88.B8;
-        blackKnights[1] = Square0x88.G8;
-
-        whiteBishops = new byte[Config.PIECE_LIST_CAPACITY];
-        whiteBishopsCount = 2;
-        whiteBishops[0] = Square0x88.C1;
-        whiteBishops[1] = Square0x88.F1;
-        blackBishops = new byte[Config.PIECE_LIST_CAPACITY];
-        blackBishopsCount = 2;
-        blackBishops[0] = Square0x88.C8;
-        blackBishops[1] = Square0x88.F8;
-
-        whiteRooks = new byte[Config.PIECE_LIST_CAPACITY];
-        whiteRooksCount = 2;
-        whiteRooks[0] = Square0x88.A1;
-        whiteRooks[1] = Square0x88.H1;
-        blackRooks = new byte[Config.PIECE_LIST_CAPACITY];
-        blackRooksCount = 2;
-        blackRooks[0] = Square0x88.A8;
-        blackRooks[1] = Square0x88.H8;
-
-        whiteQueens = new byte[Config.PIECE_LIST_CAPACITY];
-        whiteQueensCount = 1;
-        whiteQueens[0] = Square0x88.D1;
-        blackQueens = new byte[Config.PIECE_LIST_CAPACITY];
-        blackQueensCount = 1;
-        blackQueens[0] = Square0x88.D8;
+        this(new byte[SIZE]);
+        for (int file = 0; file < 8; file++) {
+            add(Content.WHITE_PAWN, Square0x88.from07(file, 1));
+        }
+        for (int file = 0; file < 8; file++) {
+            add(Content.BLACK_PAWN, Square0x88.from07(file, 6));
+        }
+        add(Content.WHITE_KNIGHT, Square0x88.B1);
+        add(Content.WHITE_KNIGHT, Square0x88.G1);
+        add(Content.BLACK_KNIGHT, Square0x88.B8);
+        add(Content.BLACK_KNIGHT, Square0x88.G8);
+        add(Content.WHITE_BISHOP, Square0x88.C1);
+        add(Content.WHITE_BISHOP, Square0x88.F1);
+        add(Content.BLACK_BISHOP, Square0x88.C8);
+        add(Content.BLACK_BISHOP, Square0x88.F8);
+        add(Content.WHITE_ROOK, Square0x88.A1);
+        add(Content.WHITE_ROOK, Square0x88.H1);
+        add(Content.BLACK_ROOK, Square0x88.A8);
+        add(Content.BLACK_ROOK, Square0x88.H8);
+        add(Content.WHITE_QUEEN, Square0x88.D1);
+        add(Content.BLACK_QUEEN, Square0x88.D8);
+        add(Content.WHITE_KING, Square0x88.E1);
+        add(Content.BLACK_KING, Square0x88.E8);
     }
 
-    private PieceLists(byte whiteKing, byte blackKing,
-                       List<Byte> whitePawns, List<Byte> blackPawns,
-                       List<Byte> whiteKnights, List<Byte> blackKnights,
-                       List<Byte> whiteBishops, List<Byte> blackBishops,
-                       List<Byte> whiteRooks, List<Byte> blackRooks,
-                       List<Byte> whiteQueens, List<Byte> blackQueens
-                       ) {
-        this.whiteKing = whiteKing;
-        this.blackKing = blackKing;
-        this.whitePawns = toArray(whitePawns, whitePawns.size());
-        whitePawnsCount = (byte)whitePawns.size();
-        this.blackPawns = toArray(blackPawns, blackPawns.size());
-        blackPawnsCount = (byte)blackPawns.size();
-
-        this.whiteKnights = toArray(whiteKnights, capacity(whiteKnights.size(), whitePawnsCount));
-        whiteKnightsCount = (byte)whiteKnights.size();
-        this.blackKnights = toArray(blackKnights, capacity(blackKnights.size(), blackPawnsCount));
-        blackKnightsCount = (byte)blackKnights.size();
-
-        this.whiteBishops = toArray(whiteBishops, capacity(whiteBishops.size(), whitePawnsCount));
-        whiteBishopsCount = (byte)whiteBishops.size();
-        this.blackBishops = toArray(blackBishops, capacity(blackBishops.size(), blackPawnsCount));
-        blackBishopsCount = (byte)blackBishops.size();
-        
-        this.whiteRooks = toArray(whiteRooks, capacity(whiteRooks.size(), whitePawnsCount));
-        whiteRooksCount = (byte)whiteRooks.size();
-        this.blackRooks = toArray(blackRooks, capacity(blackRooks.size(), blackPawnsCount));
-        blackRooksCount = (byte)blackRooks.size();
-        
-        this.whiteQueens = toArray(whiteQueens, capacity(whiteQueens.size(), whitePawnsCount));
-        whiteQueensCount = (byte)whiteQueens.size();
-        this.blackQueens = toArray(blackQueens, capacity(blackQueens.size(), blackPawnsCount));
-        blackQueensCount = (byte)blackQueens.size();
+    public int getCount(Content piece) {
+        return lists[piece.asByte];
     }
 
-    private byte[] toArray(List<Byte> list, int capacity) {
-        byte[] array = new byte[capacity];
-        for (int i = 0; i < list.size(); i++) {
-            array[i] = list.get(i);
-        }
-        return array;
-    }
-
-    private int capacity(int piecesCount, int pawnsCount) {
-        return Math.min(piecesCount + pawnsCount, Config.PIECE_LIST_CAPACITY);
+    /**
+     * @param index - from 0 to getCount(piece) - 1
+     * @return square (0x88) of the piece
+     */
+    public byte getSquare(Content piece, int index) {
+        assert index < lists[piece.asByte] : "No " + piece + " at index " + index;
+        return lists[FIRST_SLOTS[piece.asByte] + index];
     }
 
     @Override
     public PieceLists clone() {
-        return new PieceLists(whiteKing, blackKing,
-                whitePawns.clone(), whitePawnsCount, blackPawns.clone(), blackPawnsCount,
-                whiteKnights.clone(), whiteKnightsCount, blackKnights.clone(), blackKnightsCount,
-                whiteBishops.clone(), whiteBishopsCount, blackBishops.clone(), blackBishopsCount,
-                whiteRooks.clone(), whiteRooksCount, blackRooks.clone(), blackRooksCount,
-                whiteQueens.clone(), whiteQueensCount, blackQueens.clone(), blackQueensCount);
+        return new PieceLists(lists.clone());
     }
 
-    void move(Content piece, byte from, byte to) {
-        byte[] movingPieces = null;
-        int movingPiecesCount = 0;
-        switch (piece) {
-            case WHITE_PAWN:
-                movingPieces = whitePawns;
-                movingPiecesCount = whitePawnsCount;
-                break;
-            case BLACK_PAWN:
-                movingPieces = blackPawns;
-                movingPiecesCount = blackPawnsCount;
-                break;
-            case WHITE_KNIGHT:
-                movingPieces = whiteKnights;
-                movingPiecesCount = whiteKnightsCount;
-                break;
-            case BLACK_KNIGHT:
-                movingPieces = blackKnights;
-                movingPiecesCount = blackKnightsCount;
-                break;
-            case WHITE_BISHOP:
-                movingPieces = whiteBishops;
-                movingPiecesCount = whiteBishopsCount;
-                break;
-            case BLACK_BISHOP:
-                movingPieces = blackBishops;
-                movingPiecesCount = blackBishopsCount;
-                break;
-            case WHITE_ROOK:
-                movingPieces = whiteRooks;
-                movingPiecesCount = whiteRooksCount;
-                break;
-            case BLACK_ROOK:
-                movingPieces = blackRooks;
-                movingPiecesCount = blackRooksCount;
-                break;
-            case WHITE_QUEEN:
-                movingPieces = whiteQueens;
-                movingPiecesCount = whiteQueensCount;
-                break;
-            case BLACK_QUEEN:
-                movingPieces = blackQueens;
-                movingPiecesCount = blackQueensCount;
-                break;
-            case WHITE_KING:
-                whiteKing = to;
-                return;
-            case BLACK_KING:
-                blackKing = to;
-                return;
-            default:
-                assert false : "Invalid piece to move: " + piece;
-                return;
-        }
+    /**
+     * Overwrites this piece lists with content of the other.
+     */
+    void copyFrom(PieceLists other) {
+        System.arraycopy(other.lists, 0, lists, 0, SIZE);
+    }
 
-        for (int i = 0; i < movingPiecesCount; i++) {
-            if (movingPieces[i] == from) {
-                movingPieces[i] = to;
-                break;
-            }
+    private void add(Content piece, byte square) {
+        int count = lists[piece.asByte];
+        if (count == CAPACITIES[piece.asByte]) {
+            throw new IllegalStateException("Too many pieces: " + piece);
         }
+        int slot = FIRST_SLOTS[piece.asByte] + count;
+        lists[slot] = square;
+        lists[SLOTS_OF_SQUARES_OFFSET + square] = (byte) slot;
+        lists[piece.asByte]++;
     }
 
-    void kill(Content piece, byte killedOn) {
-        byte[] listWithKilledPiece = null;
-        int piecesCount = -1;
-        switch(piece) {
-            case BLACK_PAWN:
-                listWithKilledPiece = blackPawns;
-                piecesCount = blackPawnsCount--;
-                break;
-            case BLACK_KNIGHT:
-                listWithKilledPiece = blackKnights;
-                piecesCount = blackKnightsCount--;
-                break;
-            case BLACK_BISHOP:
-                listWithKilledPiece = blackBishops;
-                piecesCount = blackBishopsCount--;
-                break;
-            case BLACK_ROOK:
-                listWithKilledPiece = blackRooks;
-                piecesCount = blackRooksCount--;
-                break;
-            case BLACK_QUEEN:
-                listWithKilledPiece = blackQueens;
-                piecesCount = blackQueensCount--;
-                break;
-            case WHITE_PAWN:
-                listWithKilledPiece = whitePawns;
-                piecesCount = whitePawnsCount--;
-                break;
-            case WHITE_KNIGHT:
-                listWithKilledPiece = whiteKnights;
-                piecesCount = whiteKnightsCount--;
-                break;
-            case WHITE_BISHOP:
-                listWithKilledPiece = whiteBishops;
-                piecesCount = whiteBishopsCount--;
-                break;
-            case WHITE_ROOK:
-                listWithKilledPiece = whiteRooks;
-                piecesCount = whiteRooksCount--;
-                break;
-            case WHITE_QUEEN:
-                listWithKilledPiece = whiteQueens;
-                piecesCount = whiteQueensCount--;
-                break;
-            default:
-                assert false : "Invalid piece to take: " + piece;
-        }
+    void move(Content piece, byte from, byte to) {
+        int slot = lists[SLOTS_OF_SQUARES_OFFSET + from];
+        assert isOnList(piece, slot, from) : "Invalid piece to move: " + piece + " " + from;
+        lists[slot] = to;
+        lists[SLOTS_OF_SQUARES_OFFSET + to] = (byte) slot;
+    }
 
-        for (int i = 0; i < piecesCount; i++) {
-            if (listWithKilledPiece[i] == killedOn) {
-                listWithKilledPiece[i] = listWithKilledPiece[piecesCount - 1];
-                return;
-            }
-        }
-        assert false : "Didn't find piece to kill on piece list " + piece + " " + killedOn;
+    void kill(Content piece, byte killedOn) {
+        int slot = lists[SLOTS_OF_SQUARES_OFFSET + killedOn];
+        assert isOnList(piece, slot, killedOn) : "Didn't find piece to kill on piece list " + piece + " " + killedOn;
+        int lastSlot = FIRST_SLOTS[piece.asByte] + --lists[piece.asByte];
+        byte lastSquare = lists[lastSlot];
+        lists[slot] = lastSquare;
+        lists[SLOTS_OF_SQUARES_OFFSET + lastSquare] = (byte) slot;
     }
 
     public void promote(byte where, Content toWhat) {
-        byte[] pieces = toWhat.isWhite ? whitePawns : blackPawns;
-        byte piecesCount = toWhat.isWhite ? whitePawnsCount-- : blackPawnsCount--;
-        for (int i = 0; i < piecesCount; i++) {
-            if (pieces[i] == where) {
-               pieces[i] = pieces[piecesCount - 1];
-            }
-        }
-        switch (toWhat) {
-            case BLACK_KNIGHT:
-                pieces = blackKnights;
-                piecesCount = blackKnightsCount++;
-                break;
-            case BLACK_BISHOP:
-                pieces = blackBishops;
-                piecesCount = blackBishopsCount++;
-                break;
-            case BLACK_ROOK:
-                pieces = blackRooks;
-                piecesCount = blackRooksCount++;
-                break;
-            case BLACK_QUEEN:
-                pieces = blackQueens;
-                piecesCount = blackQueensCount++;
-                break;
-            case WHITE_KNIGHT:
-                pieces = whiteKnights;
-                piecesCount = whiteKnightsCount++;
-                break;
-            case WHITE_BISHOP:
-                pieces = whiteBishops;
-                piecesCount = whiteBishopsCount++;
-                break;
-            case WHITE_ROOK:
-                pieces = whiteRooks;
-                piecesCount = whiteRooksCount++;
-                break;
-            case WHITE_QUEEN:
-                pieces = whiteQueens;
-                piecesCount = whiteQueensCount++;
-                break;
-            default:
-                assert false : "Invalid piece to promote to: " + toWhat;
-        }
-        pieces[piecesCount] = where;
+        kill(toWhat.isWhite ? Content.WHITE_PAWN : Content.BLACK_PAWN, where);
+        add(toWhat, where);
+    }
+
+    private boolean isOnList(Content piece, int slot, byte square) {
+        return lists[slot] == square && slot >= FIRST_SLOTS[piece.asByte]
+                && slot < FIRST_SLOTS[piece.asByte] + lists[piece.asByte];
     }
 
     public byte getWhiteKing() {
-        return whiteKing;
+        return lists[FIRST_SLOTS[Content.WHITE_KING.asByte]];
     }
 
     public byte getBlackKing() {
-        return blackKing;
+        return lists[FIRST_SLOTS[Content.BLACK_KING.asByte]];
     }
-    
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        return sb.append("White: ")
+                .append("king:").append(Square0x88.toString(getWhiteKing())).append(' ')
+                .append(toString("Pawns:", Content.WHITE_PAWN))
+                .append(toString("Knights:", Content.WHITE_KNIGHT))
+                .append(toString("Bishops:", Content.WHITE_BISHOP))
+                .append(toString("Rooks:", Content.WHITE_ROOK))
+                .append(toString("Queens:", Content.WHITE_QUEEN))
+                .append('\n')
+                .append("Black: ")
+                .append("king:").append(Square0x88.toString(getBlackKing())).append(' ')
+                .append(toString("Pawns:", Content.BLACK_PAWN))
+                .append(toString("Knights:", Content.BLACK_KNIGHT))
+                .append(toString("Bishops:", Content.BLACK_BISHOP))
+                .append(toString("Rooks:", Content.BLACK_ROOK))
+                .append(toString("Queens:", Content.BLACK_QUEEN))
+                .append('\n').toString();
+    }
+
+    private StringBuilder toString(String header, Content piece) {
+        StringBuilder sb = new StringBuilder(header);
+        sb.append('(').append(getCount(piece)).append(")[");
+        for (int i = 0; i < getCount(piece); i++) {
+            sb.append(Square0x88.toString(getSquare(piece, i))).append(',');
+        }
+        return sb.append("] ");
+    }
+
     public static class Builder {
-        private byte whiteKing = Square0x88.NULL;
-        private byte blackKing = Square0x88.NULL;
-        private List<Byte> whitePawns = new ArrayList<>();
-        private List<Byte> blackPawns = new ArrayList<>();
-        private List<Byte> whiteKnights = new ArrayList<>();
-        private List<Byte> blackKnights = new ArrayList<>();
-        private List<Byte> whiteBishops = new ArrayList<>();
-        private List<Byte> blackBishops = new ArrayList<>();
-        private List<Byte> whiteRooks = new ArrayList<>();
-        private List<Byte> blackRooks = new ArrayList<>();
-        private List<Byte> whiteQueens = new ArrayList<>();
-        private List<Byte> blackQueens = new ArrayList<>();
+        private final PieceLists pieces = new PieceLists(new byte[SIZE]);
 
         public void addWhitePawn(byte piece) {
-            whitePawns.add(piece);
+            pieces.add(Content.WHITE_PAWN, piece);
         }
         public void addBlackPawn(byte piece) {
-            blackPawns.add(piece);
+            pieces.add(Content.BLACK_PAWN, piece);
         }
         public void addWhiteKnight(byte piece) {
-            whiteKnights.add(piece);
+            pieces.add(Content.WHITE_KNIGHT, piece);
         }
         public void addBlackKnight(byte piece) {
-            blackKnights.add(piece);
+            pieces.add(Content.BLACK_KNIGHT, piece);
         }
         public void addWhiteBishop(byte piece) {
-            whiteBishops.add(piece);
+            pieces.add(Content.WHITE_BISHOP, piece);
         }
         public void addBlackBishop(byte piece) {
-            blackBishops.add(piece);
+            pieces.add(Content.BLACK_BISHOP, piece);
         }
         public void addWhiteRook(byte piece) {
-            whiteRooks.add(piece);
+            pieces.add(Content.WHITE_ROOK, piece);
         }
         public void addBlackRook(byte piece) {
-            blackRooks.add(piece);
+            pieces.add(Content.BLACK_ROOK, piece);
         }
         public void addWhiteQueen(byte piece) {
-            whiteQueens.add(piece);
+            pieces.add(Content.WHITE_QUEEN, piece);
         }
         public void addBlackQueen(byte piece) {
-            blackQueens.add(piece);
+            pieces.add(Content.BLACK_QUEEN, piece);
         }
         public void setWhiteKing(byte piece) {
-            if (whiteKing != Square0x88.NULL) {
-                throw new IllegalStateException("Duplicate white king: "+ whiteKing +" " + piece);
+            if (pieces.getCount(Content.WHITE_KING) != 0) {
+                throw new IllegalStateException("Duplicate white king: "+ pieces.getWhiteKing() +" " + piece);
             }
-            whiteKing = piece;
+            pieces.add(Content.WHITE_KING, piece);
         }
-        
+
         public void setBlackKing(byte piece) {
-            if (blackKing != Square0x88.NULL) {
-                throw new IllegalStateException("Duplicate black king: "+ blackKing +" " + piece);
+            if (pieces.getCount(Content.BLACK_KING) != 0) {
+                throw new IllegalStateException("Duplicate black king: "+ pieces.getBlackKing() +" " + piece);
             }
-            blackKing = piece;
+            pieces.add(Content.BLACK_KING, piece);
         }
-        
+
         public PieceLists build() {
-            return new PieceLists(whiteKing,blackKing, whitePawns, blackPawns,
-                    whiteKnights, blackKnights, whiteBishops, blackBishops,
-                    whiteRooks, blackRooks, whiteQueens,blackQueens);
+            return pieces;
         }
     }
 }
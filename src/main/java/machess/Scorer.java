@@ -8,6 +8,10 @@ import java.util.*;
 
 import static machess.Utils.spaces;
 
+/**
+ * Alpha-beta search of a single thread. Each search thread uses its own Scorer so that node counter, move buffers and
+ * move ordering tables are not shared. Only the transposition table is shared between threads.
+ */
 public class Scorer {
 	public static final int LOST = -1_000_000;
 	private static final int DRAW = 0;
@@ -15,14 +19,14 @@ public class Scorer {
 	/**
 	 * Can't just use Integer.MIN_VALUE because it overflows in negamax after changing sign.
 	 */
-	private static final int MINUS_INFINITY = -Integer.MAX_VALUE;
-	private static final int INFINITY = Integer.MAX_VALUE ;
+	public static final int MINUS_INFINITY = -Integer.MAX_VALUE;
+	public static final int INFINITY = Integer.MAX_VALUE ;
 
-	private static final int MATERIAL_PAWN 		= 100;
-	private static final int MATERIAL_KNIGHT 	= 300;
-	private static final int MATERIAL_BISHOP 	= 300;
-	private static final int MATERIAL_ROOK		= 500;
-	private static final int MATERIAL_QUEEN		= 900;
+	static final int MATERIAL_PAWN 		= 100;
+	static final int MATERIAL_KNIGHT 	= 300;
+	static final int MATERIAL_BISHOP 	= 300;
+	static final int MATERIAL_ROOK		= 500;
+	static final int MATERIAL_QUEEN		= 900;
 
 	//  Score more than overwhelming difference in material
 	public static final int SCORE_CLOSE_TO_WIN = 2 * (9 * MATERIAL_QUEEN +  2 * MATERIAL_ROOK +
@@ -30,32 +34,152 @@ public class Scorer {
 
 	private static final int LEGAL_MOVE_SCORE = 5;
 
-	public static int nodesEvaluated = 0;
+	/**
+	 * Null move pruning - https://www.chessprogramming.org/Null_Move_Pruning
+	 * Depth reduction R is 2 or 3 above NULL_MOVE_DEEP_REDUCTION_DEPTH (adaptive null move pruning). From
+	 * NULL_MOVE_VERIFICATION_DEPTH null move cutoffs are verified by reduced depth search. Null move is tried only when
+	 * static evaluation is at least beta - otherwise passing the turn is unlikely to fail high.
+	 */
+	private static final int NULL_MOVE_MIN_DEPTH = 3;
+	private static final int NULL_MOVE_DEEP_REDUCTION_DEPTH = 6;
+	private static final int NULL_MOVE_VERIFICATION_DEPTH = 6;
+
+	/**
+	 * Late move reductions - https://www.chessprogramming.org/Late_Move_Reductions
+	 * Quiet moves of non-PV nodes ordered after LMR_MIN_MOVES are searched to depth reduced by
+	 * ln(depth) * ln(moves count) / 2 and searched again at full depth when they beat alpha. Moves whose reduction
+	 * rounds down to zero are searched at full depth right away.
+	 * Moves giving check, killer moves and moves out of check are not reduced.
+	 */
+	private static final int LMR_MIN_DEPTH = 3;
+	private static final int LMR_MIN_MOVES = 3;
+	private static final int[][] LMR_REDUCTIONS = new int[64][64];
+
+	static {
+		for (int depth = 1; depth < LMR_REDUCTIONS.length; depth++) {
+			for (int movesCount = 1; movesCount < LMR_REDUCTIONS[depth].length; movesCount++) {
+				LMR_REDUCTIONS[depth][movesCount] = (int) (Math.log(depth) * Math.log(movesCount) / 2);
+			}
+		}
+	}
+
+	/**
+	 * Shared by all search threads. Entries are read and written without locking.
+	 */
+	public static final TranspositionTable transpositionTable = new TranspositionTable(Config.HASH_MEGABYTES);
+
+	/**
+	 * Only the main thread prints info and its result is the one that is played
+	 */
+	private final boolean isMainThread;
+
+	/**
+	 * Written only by the searching thread. Other threads may read a slightly outdated value.
+	 */
+	private int nodesEvaluated = 0;
+
+	private volatile boolean interrupt;
+
+	/**
+	 * Can be moved while searching eg. on ponderhit
+	 */
+	private volatile Instant finishTime = Instant.MAX;
+
+	/**
+	 * Depth of the current iteration. Checks are extended only up to twice this distance from the root.
+	 */
+	private int rootDepth;
+
+	private int[][] movesBuffers = new int[Config.MAX_SEARCH_DEPTH][];
+	private MovePicker[] movePickers = new MovePicker[Config.MAX_SEARCH_DEPTH];
+	/**
+	 * Two quiet moves per ply that recently caused a beta cutoff - https://www.chessprogramming.org/Killer_Heuristic
+	 */
+	private int[][] killerMoves = new int[Config.MAX_SEARCH_DEPTH][2];
+	private final HistoryTable history = new HistoryTable();
+
+	public Scorer(boolean isMainThread) {
+		this.isMainThread = isMainThread;
+	}
+
+	/**
+	 * Resets node counter, interrupt flag and killer moves and ages history before iterative deepening
+	 */
+	public void newSearch() {
+		nodesEvaluated = 0;
+		interrupt = false;
+		for (int[] killers : killerMoves) {
+			if (killers != null) {
+				Arrays.fill(killers, Move.NONE);
+			}
+		}
+		history.age();
+	}
 
-	private static volatile boolean interrupt;
+	/**
+	 * Forgets move ordering statistics of the previous game
+	 */
+	public void newGame() {
+		history.clear();
+	}
 
-	public static Result startAlphaBeta(State rootState, int depth, Instant finishTime, Line leftmostLine, Line debugLine) {
+	/**
+	 * Can be called from any thread
+	 */
+	public void setFinishTime(Instant finishTime) {
+		this.finishTime = finishTime;
+	}
+
+	public int getNodesEvaluated() {
+		return nodesEvaluated;
+	}
+
+	/**
+	 * @return principal variation or null if search was terminated or ran out of time
+	 */
+	public Result startAlphaBeta(State rootState, int depth, Line leftmostLine, Line debugLine) {
+		return startAlphaBeta(rootState, depth, MINUS_INFINITY, INFINITY, leftmostLine, debugLine);
+	}
+
+	/**
+	 * Search with aspiration window - https://www.chessprogramming.org/Aspiration_Windows
+	 * @return result with score bound by the window. When all moves fail low its pv is empty. When a move fails high its
+	 * pv starts with that move. Null pv if search was terminated or ran out of time.
+	 */
+	public Result startAlphaBeta(State rootState, int depth, int alpha, final int beta, Line leftmostLine, Line debugLine) {
 		if (debugLine.movesCount > 0) {
 			System.out.println("debug line " + debugLine);
 		}
-		interrupt = false;
+		rootDepth = depth;
+		// matching moves advances the line so that it can't be reused by a re-search
+		leftmostLine = leftmostLine.copy();
 		Line pvLine = Line.empty();
 		Line pvSubLine = Line.empty();
-		List<State> moves = rootState.generateLegalMoves();
-		int alpha = MINUS_INFINITY;
-		final int beta = INFINITY;
+		State state = rootState.copy();
+		int[] moves = movesBuffer(0);
+		int movesCount = state.generateLegalMoves(moves, State.GeneratorMode.ALL_MOVES);
+		final int windowAlpha = alpha;
 
-
-		if (moves.isEmpty()) {
-			return new Result(terminalNodeScore(rootState, 0), pvLine, nodesEvaluated, false);
+		if (movesCount == 0) {
+			return new Result(terminalNodeScore(state, 0), pvLine, nodesEvaluated, false, TranspositionTable.EXACT);
 		}
 
-		reorderMoves(moves, leftmostLine, 1);
-		for (State move : moves) {
+		reorderMoves(moves, movesCount, leftmostLine, 1);
+		for (int i = 0; i < movesCount; i++) {
+			int move = moves[i];
 			int currScore;
 
 			try {
-				currScore = -alphaBeta(move, depth - 1, -beta, -alpha, leftmostLine, pvSubLine, finishTime, debugLine, 1);
+				state.makeMove(move);
+				if (i == 0) {
+					currScore = -alphaBeta(state, depth - 1, -beta, -alpha, leftmostLine, pvSubLine, debugLine, 1, true);
+				} else {
+					currScore = -alphaBeta(state, depth - 1, -alpha - 1, -alpha, leftmostLine, pvSubLine, debugLine, 1, true);
+					if (currScore > alpha && currScore < beta) {
+						currScore = -alphaBeta(state, depth - 1, -beta, -alpha, leftmostLine, pvSubLine, debugLine, 1, true);
+					}
+				}
+				state.unmakeMove();
 			} catch (Throwable error) {
 				System.out.println("----------------------ERROR!-------------------------------------");
 				System.out.println("ROOT STATE: " + rootState);
@@ -63,35 +187,52 @@ public class Scorer {
 			}
 			if (currScore > alpha) {
 				pvLine.updateSubline(pvSubLine, move);
-				System.out.println(spaces(UCI.INFO, UCI.PV, pvLine.toString(), UCI.SCORE, UCI.formatScore(currScore)));
+				if (isMainThread) {
+					System.out.println(spaces(UCI.INFO, UCI.PV, pvLine.toString(), UCI.SCORE, UCI.formatScore(currScore)));
+				}
 				alpha = currScore;
 			}
 
-			if (Utils.nanoNow().isAfter(finishTime) && depth > 1) {
-				return new Result(0, null, nodesEvaluated, false);
+			// depth 1 is always finished so that there is a move to play
+			if (depth > 1 && (interrupt || Utils.nanoNow().isAfter(finishTime))) {
+				return new Result(0, null, nodesEvaluated, false, TranspositionTable.EXACT);
+			}
+			if (currScore >= beta) {
+				return new Result(beta, pvLine, nodesEvaluated, movesCount == 1, TranspositionTable.LOWER_BOUND);
 			}
 			if (nextMoveWins(currScore)) {
 				break;
 			}
 		}
-		return new Result(alpha, pvLine, nodesEvaluated, moves.size() == 1);
+		int bound = alpha > windowAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER_BOUND;
+		return new Result(alpha, pvLine, nodesEvaluated, movesCount == 1, bound);
 	}
 
-	public static void terminate() {
+	/**
+	 * Makes search return as soon as possible. Can be called from any thread.
+	 */
+	public void terminate() {
 		interrupt = true;
 	}
 
 	/**
+	 * Principal variation search - https://www.chessprogramming.org/Principal_Variation_Search
+	 * First move is searched with full window, the others with null window to prove they are not better. A move that
+	 * turns out better is searched again with full window. Nodes searched with null window are non-PV nodes.
+	 * Moves giving check are extended by one ply unless the node is already twice as far from the root as the iteration
+	 * depth.
 	 *
+	 * @param state - search state. Moves are made and unmade on it so it's the same state when this method returns.
 	 * @param leftmostLine - line to be examined first (obtained from previous ID)
 	 * @param principalVariation - principal variation line - https://www.chessprogramming.org/Principal_Variation
 	 *                           propagated up to the root node
 	 * @param debugLine - nullable line that when matched should display additional info about scores of it's children.
 	 * @param ply - same as depth but counts up. In other words ply distance from the root node
+	 * @param isNullMoveAllowed - false right after null move and in null move verification search
 	 * @return score
 	 */
-	private static int alphaBeta(State state, int depth, int alpha, int beta, Line leftmostLine, Line principalVariation,
-								 Instant finishTime, Line debugLine, int ply) {
+	private int alphaBeta(State state, int depth, int alpha, int beta, Line leftmostLine, Line principalVariation,
+								 Line debugLine, int ply, boolean isNullMoveAllowed) {
 		boolean debugChildrenScores = false;
 		if (debugLine.movesCount > 0) {
 			debugLine.isMoveMatched(state, ply);
@@ -103,48 +244,156 @@ public class Scorer {
 			}
 		}
 		if (depth <= 0) {
-			return quiescence(state, alpha, beta, ply, principalVariation);
+			return quiescence(state, alpha, beta, ply, principalVariation, true);
+		}
+		boolean isPvNode = beta - alpha > 1;
+		boolean isInCheck = state.isKingInCheck();
+
+		long zobristKey = state.getZobristKey();
+		long ttEntry = transpositionTable.probe(zobristKey);
+		if (ttEntry != 0 && TranspositionTable.getDepth(ttEntry) >= depth) {
+			int ttScore = scoreFromTransposition(TranspositionTable.getScore(ttEntry), ply);
+			int bound = TranspositionTable.getBound(ttEntry);
+			// exact scores inside the window are searched anyway so that the principal variation is not cut short
+			if (ttScore >= beta && bound != TranspositionTable.UPPER_BOUND) {
+				return beta;
+			}
+			if (ttScore <= alpha && bound != TranspositionTable.LOWER_BOUND) {
+				return alpha;
+			}
 		}
 
 		Line pvSubLine = Line.empty();
 
-		List<State> moves = state.generateLegalMoves();
-
-		if (moves.isEmpty()) {
-			principalVariation.movesCount = 0;
-			return terminalNodeScore(state, ply);
+		if (isNullMoveAllowed && !isPvNode && depth >= NULL_MOVE_MIN_DEPTH && !isInCheck
+				&& hasPiecesOtherThanPawns(state) && evaluate(state, ply) >= beta) {
+			int reduction = depth > NULL_MOVE_DEEP_REDUCTION_DEPTH ? 3 : 2;
+			state.makeNullMove();
+			int nullMoveScore = -alphaBeta(state, depth - 1 - reduction, -beta, -beta + 1, Line.empty(), pvSubLine,
+					debugLine, ply + 1, false);
+			state.unmakeMove();
+			if (nullMoveScore >= beta && depth >= NULL_MOVE_VERIFICATION_DEPTH) {
+				// zugzwang protection - the same node searched to reduced depth without null move has to fail high too
+				nullMoveScore = alphaBeta(state, depth - reduction, beta - 1, beta, Line.empty(), pvSubLine,
+						debugLine, ply, false);
+			}
+			if (nullMoveScore >= beta && !interrupt) {
+				storeTransposition(zobristKey, Move.NONE, beta, depth, TranspositionTable.LOWER_BOUND, ply);
+				return beta;
+			}
 		}
-		reorderMoves(moves, leftmostLine, ply + 1);
-		for (State move : moves) {
+
+		String pvMoveLan = leftmostLine.getMoveToMatch(ply + 1);
+		int pvMove = pvMoveLan != null ? Lan.parse(state, pvMoveLan) : TranspositionTable.getMove(ttEntry);
+		int[] killers = killerMoves(ply);
+		MovePicker movePicker = movePicker(ply);
+		movePicker.init(state, pvMove, killers[0], killers[1], history);
+
+		int movesCount = 0;
+		int bestMove = Move.NONE;
+		int move;
+		while ((move = movePicker.next()) != Move.NONE) {
+			movesCount++;
+			if (move == pvMove) {
+				leftmostLine.isMoveMatched(move, ply + 1);
+			}
+			boolean isQuiet = state.isQuiet(move);
 			int currScore;
 			try {
-				currScore = -alphaBeta(move, depth - 1, -beta, -alpha, leftmostLine, pvSubLine, finishTime, debugLine, ply + 1);
+				state.makeMove(move);
+				boolean givesCheck = state.isKingInCheck();
+				int childDepth = givesCheck && ply < 2 * rootDepth ? depth : depth - 1;
+				if (movesCount == 1) {
+					currScore = -alphaBeta(state, childDepth, -beta, -alpha, leftmostLine, pvSubLine, debugLine, ply + 1, true);
+				} else {
+					int reduction = 0;
+					if (!isPvNode && isQuiet && !isInCheck && depth >= LMR_MIN_DEPTH && movesCount > LMR_MIN_MOVES
+							&& move != killers[0] && move != killers[1] && !givesCheck) {
+						reduction = lateMoveReduction(depth, movesCount);
+					}
+					currScore = -alphaBeta(state, childDepth - reduction, -alpha - 1, -alpha, leftmostLine, pvSubLine, debugLine, ply + 1, true);
+					if (reduction > 0 && currScore > alpha) {
+						currScore = -alphaBeta(state, childDepth, -alpha - 1, -alpha, leftmostLine, pvSubLine, debugLine, ply + 1, true);
+					}
+					if (isPvNode && currScore > alpha) {
+						currScore = -alphaBeta(state, childDepth, -beta, -alpha, leftmostLine, pvSubLine, debugLine, ply + 1, true);
+					}
+				}
+				state.unmakeMove();
 			} catch (Throwable error) {
 				System.out.println("----------------------ERROR!-------------------------------------");
 				System.out.println("PLY: " + ply + " STATE: " + state);
 				throw error;
 			}
 			if (debugChildrenScores) {
-				System.out.println("\t" + Lan.toStringLastMove(move) + ": " + currScore);
+				System.out.println("\t" + Lan.toString(move) + ": " + currScore);
 			}
 			if (currScore >= beta) {
+				if (isQuiet) {
+					storeKiller(killers, move);
+					history.onCutoff(state.test(State.WHITE_TURN), move, depth);
+				}
+				storeTransposition(zobristKey, move, beta, depth, TranspositionTable.LOWER_BOUND, ply);
 				return beta;
 			}
 			if (currScore > alpha) {
 				principalVariation.updateSubline(pvSubLine, move);
 				alpha = currScore;
+				bestMove = move;
 			}
 			if (Utils.nanoNow().isAfter(finishTime)) {
-				break;
+				// scores of unfinished nodes must not get into transposition table
+				interrupt = true;
 			}
 			if (interrupt) {
 				break;
 			}
 		}
+		if (movesCount == 0) {
+			principalVariation.movesCount = 0;
+			int score = terminalNodeScore(state, ply);
+			storeTransposition(zobristKey, Move.NONE, score, depth, TranspositionTable.EXACT, ply);
+			return score;
+		}
+		storeTransposition(zobristKey, bestMove, alpha, depth,
+				bestMove != Move.NONE ? TranspositionTable.EXACT : TranspositionTable.UPPER_BOUND, ply);
 		return alpha;
 	}
 
-	private static int quiescence(State state, int alpha, int beta, int ply, Line principalVariation) {
+	private void storeTransposition(long zobristKey, int move, int score, int depth, int bound, int ply) {
+		if (!interrupt) {
+			transpositionTable.store(zobristKey, move, scoreToTransposition(score, ply), depth, bound);
+		}
+	}
+
+	/**
+	 * Mate scores are stored as distance to mate from the stored position rather than from the root
+	 */
+	private static int scoreToTransposition(int score, int ply) {
+		if (score > SCORE_CLOSE_TO_WIN) {
+			return score + ply;
+		}
+		if (score < -SCORE_CLOSE_TO_WIN) {
+			return score - ply;
+		}
+		return score;
+	}
+
+	private static int scoreFromTransposition(int score, int ply) {
+		if (score > SCORE_CLOSE_TO_WIN) {
+			return score - ply;
+		}
+		if (score < -SCORE_CLOSE_TO_WIN) {
+			return score + ply;
+		}
+		return score;
+	}
+
+	/**
+	 * @param withChecks - true at the first quiescence ply where quiet moves giving check are searched after tactical
+	 *                   moves so that mating attacks are not missed
+	 */
+	private int quiescence(State state, int alpha, int beta, int ply, Line principalVariation, boolean withChecks) {
 		int score = evaluate(state, ply);
 
 		if (score >= beta) {
@@ -155,11 +404,32 @@ public class Scorer {
 			alpha = score;
 		}
 
-		Line pvSubLine = Line.empty();
-		List<State> moves = state.generateLegalTacticalMoves();
+		int[] moves = movesBuffer(ply);
+		int movesCount = state.generateLegalMoves(moves, State.GeneratorMode.TACTICAL_MOVES);
+		MovePicker.sortByMvvLva(state, moves, movesCount);
+		alpha = quiescenceMoves(state, moves, movesCount, alpha, beta, ply, principalVariation);
+		if (alpha >= beta || !withChecks) {
+			return alpha;
+		}
+		movesCount = state.generateLegalMoves(moves, State.GeneratorMode.CHECKS);
+		return quiescenceMoves(state, moves, movesCount, alpha, beta, ply, principalVariation);
+	}
 
-		for (State move : moves) {
-			score = -quiescence(move, -beta, -alpha, ply + 1, pvSubLine);
+	/**
+	 * Moves losing material by static exchange evaluation are skipped
+	 * @return beta on cutoff, alpha otherwise
+	 */
+	private int quiescenceMoves(State state, int[] moves, int movesCount, int alpha, int beta, int ply,
+								Line principalVariation) {
+		Line pvSubLine = Line.empty();
+		for (int i = 0; i < movesCount; i++) {
+			int move = moves[i];
+			if (!state.isExchangeAtLeast(move, 0)) {
+				continue;
+			}
+			state.makeMove(move);
+			int score = -quiescence(state, -beta, -alpha, ply + 1, pvSubLine, false);
+			state.unmakeMove();
 
 			if (score >= beta) {
 				return beta;
@@ -172,44 +442,115 @@ public class Scorer {
 		return alpha;
 	}
 
-	private static void reorderMoves(List<State> moves, Line leftmostLine, int ply) {
-		for (int i = 0; i < moves.size(); i++) {
-			State move = moves.get(i);
+	private static void reorderMoves(int[] moves, int movesCount, Line leftmostLine, int ply) {
+		for (int i = 0; i < movesCount; i++) {
+			int move = moves[i];
 			if (leftmostLine.isMoveMatched(move, ply)) {
-				State tmp = moves.get(0);
-				moves.set(0, move);
-				moves.set(i, tmp);
+				moves[i] = moves[0];
+				moves[0] = move;
 				break;
 			}
 		}
 	}
 
+	/**
+	 * @return reduction that leaves at least depth 1 to the reduced search, 0 if the move is not to be reduced
+	 */
+	private static int lateMoveReduction(int depth, int movesCount) {
+		int reduction = LMR_REDUCTIONS[Math.min(depth, LMR_REDUCTIONS.length - 1)][Math.min(movesCount, LMR_REDUCTIONS[0].length - 1)];
+		return Math.min(reduction, depth - 2);
+	}
+
+	private static void storeKiller(int[] killers, int move) {
+		if (killers[0] != move) {
+			killers[1] = killers[0];
+			killers[0] = move;
+		}
+	}
+
+	private int[] killerMoves(int ply) {
+		if (ply >= killerMoves.length) {
+			killerMoves = Arrays.copyOf(killerMoves, 2 * ply);
+		}
+		if (killerMoves[ply] == null) {
+			killerMoves[ply] = new int[2];
+		}
+		return killerMoves[ply];
+	}
+
+	private MovePicker movePicker(int ply) {
+		if (ply >= movePickers.length) {
+			movePickers = Arrays.copyOf(movePickers, 2 * ply);
+		}
+		if (movePickers[ply] == null) {
+			movePickers[ply] = new MovePicker();
+		}
+		return movePickers[ply];
+	}
+
+	/**
+	 * @return buffer for moves generated at given ply. Buffers are reused so that no allocations are made during search.
+	 */
+	private int[] movesBuffer(int ply) {
+		if (ply >= movesBuffers.length) {
+			movesBuffers = Arrays.copyOf(movesBuffers, 2 * ply);
+		}
+		if (movesBuffers[ply] == null) {
+			movesBuffers[ply] = new int[State.MAX_LEGAL_MOVES];
+		}
+		return movesBuffers[ply];
+	}
+
 	public static long perft(State state, int depth, State.GeneratorMode mode) {
-		long movesCount = 0;
+		return perft(state, depth, mode, null);
+	}
+
+	/**
+	 * @param cache - nullable cache of subtrees counts
+	 */
+	public static long perft(State state, int depth, State.GeneratorMode mode, PerftCache cache) {
+		return new Scorer(true).perft(state.copy(), depth, mode, 0, cache);
+	}
+
+	private long perft(State state, int depth, State.GeneratorMode mode, int ply, PerftCache cache) {
 		if (depth == 1) {
-			switch (mode) {
-				case ALL_MOVES:
-					return state.countLegalMoves();
-				case TACTICAL_MOVES:
-					return state.generateLegalTacticalMoves().size();
+			return state.countLegalMoves(mode);
+		}
+		if (cache != null) {
+			long cachedCount = cache.probe(state.getZobristKey(), depth);
+			if (cachedCount != PerftCache.MISS) {
+				return cachedCount;
 			}
 		}
-		for (State child : state.generateLegalMoves()) {
-			movesCount += perft(child, depth - 1, mode);
+		long movesCount = 0;
+		int[] moves = movesBuffer(ply);
+		int legalMovesCount = state.generateLegalMoves(moves, State.GeneratorMode.ALL_MOVES);
+		for (int i = 0; i < legalMovesCount; i++) {
+			state.makeMove(moves[i]);
+			movesCount += perft(state, depth - 1, mode, ply + 1, cache);
+			state.unmakeMove();
+		}
+		if (cache != null) {
+			cache.store(state.getZobristKey(), depth, movesCount);
 		}
 		return movesCount;
 	}
 
 	public static void perftDivide(State state, int depth, State.GeneratorMode mode) {
-		List<State> legalMoves = state.generateLegalMoves();
 		if (depth < 1) {
 			System.out.println("nothing to divide");
 			return;
 		}
+		State divided = state.copy();
+		Scorer scorer = new Scorer(true);
+		int[] moves = new int[State.MAX_LEGAL_MOVES];
+		int legalMovesCount = divided.generateLegalMoves(moves, State.GeneratorMode.ALL_MOVES);
 		System.out.println("divide(" + depth + "):");
-		for (State child : legalMoves) {
-			long movesCount = perft(child, depth - 1, mode);
-			System.out.println(Lan.toStringLastMove(child) + " " + movesCount);
+		for (int i = 0; i < legalMovesCount; i++) {
+			divided.makeMove(moves[i]);
+			long movesCount = depth > 1 ? scorer.perft(divided, depth - 1, mode, 1, null) : 1;
+			divided.unmakeMove();
+			System.out.println(Lan.toString(moves[i]) + " " + movesCount);
 		}
 	}
 
@@ -230,21 +571,27 @@ public class Scorer {
 		// skip iterative deepening in this case
 		public final boolean oneLegalMove;
 
+		/**
+		 * {@link TranspositionTable#EXACT} or bound of the score when search failed low or high at the root
+		 */
+		public final int bound;
+
 		public Result(int score, Line pvLine, int nodesEvaluated,
-					  boolean oneLegalMove) {
+					  boolean oneLegalMove, int bound) {
 			this.score = score;
 			this.pv = pvLine;
 			this.nodesEvaluated = nodesEvaluated;
 			this.oneLegalMove = oneLegalMove;
+			this.bound = bound;
 		}
 	}
 
-	public static int evaluate(State state, int ply) {
+	public int evaluate(State state, int ply) {
 		nodesEvaluated++;
-		if (nodesEvaluated % Config.NODES_LOGGING_PERIOD == 0) {
+		if (isMainThread && nodesEvaluated % Config.NODES_LOGGING_PERIOD == 0) {
 			System.out.println(spaces(UCI.INFO, UCI.NODES, Integer.toString(nodesEvaluated)));
 		}
-		int legalMoves = state.countLegalMoves();
+		int legalMoves = state.countMobility(state.test(State.WHITE_TURN));
 		if (legalMoves == 0) {
 			return terminalNodeScore(state, ply);
 		}
@@ -257,7 +604,7 @@ public class Scorer {
 	}
 
 	private static int mobilityScore(int currSideLegalMoves, State state) {
-		int otherSideLegalMoves = state.countOtherSideLegalMoves();
+		int otherSideLegalMoves = state.countMobility(!state.test(State.WHITE_TURN));
 		if (state.test(State.WHITE_TURN)) {
 			return (currSideLegalMoves - otherSideLegalMoves) * LEGAL_MOVE_SCORE;
 		}
@@ -273,15 +620,15 @@ public class Scorer {
 
 	private static int evaluateMaterialScore(PieceLists pieces, boolean whitePieces) {
 		int score = 0;
-		byte piecesCount = whitePieces ? pieces.whitePawnsCount : pieces.blackPawnsCount;
+		int piecesCount = pieces.getCount(whitePieces ? Content.WHITE_PAWN : Content.BLACK_PAWN);
 			score += MATERIAL_PAWN * piecesCount;
-		piecesCount = whitePieces ? pieces.whiteKnightsCount : pieces.blackKnightsCount;
+		piecesCount = pieces.getCount(whitePieces ? Content.WHITE_KNIGHT : Content.BLACK_KNIGHT);
 			score += MATERIAL_KNIGHT * piecesCount;
-		piecesCount = whitePieces ? pieces.whiteBishopsCount : pieces.blackBishopsCount;
+		piecesCount = pieces.getCount(whitePieces ? Content.WHITE_BISHOP : Content.BLACK_BISHOP);
 			score += MATERIAL_BISHOP * piecesCount;
-		piecesCount = whitePieces ? pieces.whiteRooksCount : pieces.blackRooksCount;
+		piecesCount = pieces.getCount(whitePieces ? Content.WHITE_ROOK : Content.BLACK_ROOK);
 			score += MATERIAL_ROOK * piecesCount;
-		piecesCount = whitePieces ? pieces.whiteQueensCount : pieces.blackQueensCount;
+		piecesCount = pieces.getCount(whitePieces ? Content.WHITE_QUEEN : Content.BLACK_QUEEN);
 			score += MATERIAL_QUEEN * piecesCount;
 
 		return score;
@@ -319,6 +666,17 @@ public class Scorer {
 //		return score;
 //	}
 
+	/**
+	 * Zugzwang is likely when the side to move has only pawns and king
+	 */
+	private static boolean hasPiecesOtherThanPawns(State state) {
+		boolean isWhiteTurn = state.test(State.WHITE_TURN);
+		return state.pieces.getCount(isWhiteTurn ? Content.WHITE_KNIGHT : Content.BLACK_KNIGHT) > 0
+				|| state.pieces.getCount(isWhiteTurn ? Content.WHITE_BISHOP : Content.BLACK_BISHOP) > 0
+				|| state.pieces.getCount(isWhiteTurn ? Content.WHITE_ROOK : Content.BLACK_ROOK) > 0
+				|| state.pieces.getCount(isWhiteTurn ? Content.WHITE_QUEEN : Content.BLACK_QUEEN) > 0;
+	}
+
 	private static int terminalNodeScore(State state, int ply) {
 		if (state.isKingInCheck()) {
 			return LOST + ply;
@@ -1,12 +1,14 @@
 package machess;
 
+import machess.bitboard.Attacks;
+import machess.bitboard.Bitboard;
 import machess.board0x88.Direction;
 import machess.board0x88.Square0x88;
 import machess.board8x8.File;
 import machess.board8x8.Rank;
-import machess.board8x8.Square;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 
 import static machess.board0x88.Square0x88.*;
@@ -51,32 +53,95 @@ public class State {
 	public static final int BLACK_KS_CASTLE_POSSIBLE 	= 0x08;
 	public static final int BLACK_QS_CASTLE_POSSIBLE 	= 0x10;
 
+	private static final byte[] ROOK_DIRECTIONS = {Direction.N, Direction.E, Direction.S, Direction.W};
+	private static final byte[] BISHOP_DIRECTIONS = {Direction.NE, Direction.SE, Direction.SW, Direction.NW};
+	private static final byte[] KING_DIRECTIONS = {
+			Direction.N, Direction.NE, Direction.E, Direction.SE, Direction.S, Direction.SW, Direction.W, Direction.NW
+	};
+	private static final byte[] KNIGHT_DIRECTIONS = {
+			Direction.NNE, Direction.NEE, Direction.SEE, Direction.SSE, Direction.SSW, Direction.SWW, Direction.NWW, Direction.NNW
+	};
+
+	/**
+	 * Piece values used by static exchange evaluation indexed by piece type. King is worth nothing because legal moves
+	 * never let it be captured.
+	 */
+	private static final int[] EXCHANGE_VALUES = {
+			0, Scorer.MATERIAL_PAWN, Scorer.MATERIAL_KNIGHT, Scorer.MATERIAL_BISHOP, Scorer.MATERIAL_ROOK, Scorer.MATERIAL_QUEEN, 0, 0
+	};
+
 	/**
 	 * https://www.chessprogramming.org/0x88
 	 */
 	final short[] board0x88;
 
 	final PieceLists pieces;
+
+	private static final int BITBOARDS_COUNT = 16;
+	/**
+	 * Bitboards of pieces indexed by Content.asByte. They mirror board0x88.
+	 */
+	final long[] bitboards;
+	private long whiteOccupancy;
+	private long blackOccupancy;
+
+	/**
+	 * When set sliding pieces moves, attacks and pins are found with magic bitboards instead of 0x88 ray walking.
+	 */
+	private static boolean bitboardMode = Config.BITBOARDS;
+
 	/**
 	 * If not null it means there is a possibility to en-passant on this square
 	 */
-	private final byte enPassantSquare;
+	private byte enPassantSquare;
+
+	/**
+	 * Zobrist key of pieces, side to move, castling flags and en passant file. Updated incrementally by applyMove().
+	 */
+	private long zobristKey;
 
 	// TODO 50 move draw rule
-	private final byte halfmoveClock;
+	private byte halfmoveClock;
 
 	// not really necessary - only for debug purposes
-	private final int fullMoveCounter;
+	private int fullMoveCounter;
 
 	/**
-	 * Board with absolutely pinned pieces. It's indexed by Square.ordinal()
+	 * Absolutely pinned pieces as bitboards. They are computed on demand for the side to move, see getPinnedPieces().
+	 * The pin line is the line between the piece and its king.
 	 */
-	private final Pin[] pinnedPieces;
+	private long whitePinnedPieces;
+	private long blackPinnedPieces;
+	private byte validPins;
+	private static final int WHITE_PINS_VALID = 0x01;
+	private static final int BLACK_PINS_VALID = 0x02;
 
 	// for printing move
 	byte from;
 	byte to;
 	Content promotion;
+
+	/**
+	 * Upper bound on number of legal moves in any position (218 is the known maximum)
+	 */
+	public static final int MAX_LEGAL_MOVES = 256;
+
+	/**
+	 * Undo stack of makeMove(). Allocated on first makeMove() so that states used in immutable manner don't pay for it.
+	 */
+	private Undo[] undoStack;
+	private int undoCount;
+
+	/**
+	 * Output of move generators. When null the moves are only counted.
+	 */
+	private int[] outputMoves;
+	private int outputMovesCount;
+	/**
+	 * Pseudo-legal moves are put here when only counting legal moves while king is in check.
+	 */
+	private int[] scratchMoves;
+
 	/**
 	 * new game
 	 */
@@ -116,20 +181,24 @@ public class State {
 			}
 		}
 		pieces = new PieceLists();
+		bitboards = new long[BITBOARDS_COUNT];
+		initBitboards();
 		enPassantSquare = NULL;
 		halfmoveClock = 0;
 		fullMoveCounter = 1;
 		from = NULL;
 		to = NULL;
 
-		pinnedPieces = new Pin[Square.values().length];
-		initChecksAroundKings();
+		zobristKey = computeZobristKey();
+		initChecks();
 	}
 
 	public State(short[] board0x88, PieceLists pieces, byte flags,
 				 byte enPassantSquare, byte halfmoveClock, int fullMoveCounter, byte from, byte to) {
 		this.board0x88 = board0x88;
 		this.pieces = pieces;
+		bitboards = new long[BITBOARDS_COUNT];
+		initBitboards();
 		this.flags = flags;
 		this.enPassantSquare = enPassantSquare;
 		this.halfmoveClock = halfmoveClock;
@@ -137,19 +206,138 @@ public class State {
 		this.from = from;
 		this.to = to;
 
+		zobristKey = computeZobristKey();
 		resetSquaresInCheck();
-		initChecksAroundKings();
+		initChecks();
+	}
+
+	/**
+	 * Copy to be modified by applyMove() or used as a separate search state
+	 */
+	private State(State other) {
+		board0x88 = other.board0x88.clone();
+		pieces = other.pieces.clone();
+		bitboards = other.bitboards.clone();
+		whiteOccupancy = other.whiteOccupancy;
+		blackOccupancy = other.blackOccupancy;
+		whitePinnedPieces = other.whitePinnedPieces;
+		blackPinnedPieces = other.blackPinnedPieces;
+		validPins = other.validPins;
+		flags = other.flags;
+		enPassantSquare = other.enPassantSquare;
+		zobristKey = other.zobristKey;
+		halfmoveClock = other.halfmoveClock;
+		fullMoveCounter = other.fullMoveCounter;
+		from = other.from;
+		to = other.to;
+		promotion = other.promotion;
+	}
 
-		pinnedPieces = new Pin[Square.values().length];
-		initPinnedPieces();
+	/**
+	 * @return independent copy of this state. Use it for make/unmake search so that the original state is not affected.
+	 */
+	State copy() {
+		return new State(this);
+	}
+
+	/**
+	 * Generates new State based on move packed by {@link Move}.
+	 */
+	State fromMove(int move) {
+		State nextState = new State(this);
+		nextState.applyMove(move);
+		return nextState;
+	}
+
+	/**
+	 * Makes move on this state. It can be reverted by unmakeMove().
+	 */
+	public void makeMove(int move) {
+		pushUndo();
+		applyMove(move);
 	}
 
-	State fromPseudoLegalPawnDoublePush(byte from, byte to, byte enPassantSquare) {
-		assert inBounds(enPassantSquare);
-		if (!isEnPassantLegal(to)) {
-			enPassantSquare = NULL;
+	/**
+	 * Passes the turn to the opponent - https://www.chessprogramming.org/Null_Move. It can be reverted by unmakeMove().
+	 * Must not be made when in check.
+	 */
+	public void makeNullMove() {
+		assert !isKingInCheck() : "Null move made in check\n" + this;
+		pushUndo();
+		zobristKey ^= Zobrist.flags(flags) ^ enPassantKey();
+		flags ^= WHITE_TURN;
+		enPassantSquare = NULL;
+		zobristKey ^= Zobrist.flags(flags) ^ enPassantKey();
+		assert zobristKey == computeZobristKey() : "Incrementally updated zobrist key differs from the computed one\n" + this;
+	}
+
+	/**
+	 * Reverts the last move made with makeMove() or makeNullMove()
+	 */
+	public void unmakeMove() {
+		assert undoCount > 0 : "No move to unmake";
+		Undo undo = undoStack[--undoCount];
+		System.arraycopy(undo.board0x88, 0, board0x88, 0, board0x88.length);
+		pieces.copyFrom(undo.pieces);
+		System.arraycopy(undo.bitboards, 0, bitboards, 0, BITBOARDS_COUNT);
+		whiteOccupancy = undo.whiteOccupancy;
+		blackOccupancy = undo.blackOccupancy;
+		whitePinnedPieces = undo.whitePinnedPieces;
+		blackPinnedPieces = undo.blackPinnedPieces;
+		validPins = undo.validPins;
+		flags = undo.flags;
+		enPassantSquare = undo.enPassantSquare;
+		zobristKey = undo.zobristKey;
+		halfmoveClock = undo.halfmoveClock;
+		fullMoveCounter = undo.fullMoveCounter;
+		from = undo.from;
+		to = undo.to;
+		promotion = undo.promotion;
+	}
+
+	private void pushUndo() {
+		if (undoStack == null) {
+			undoStack = new Undo[Config.MAX_SEARCH_DEPTH];
+		} else if (undoCount == undoStack.length) {
+			undoStack = Arrays.copyOf(undoStack, 2 * undoStack.length);
+		}
+		Undo undo = undoStack[undoCount];
+		if (undo == null) {
+			undo = new Undo(pieces.clone());
+			undoStack[undoCount] = undo;
+		} else {
+			undo.pieces.copyFrom(pieces);
+		}
+		undoCount++;
+		System.arraycopy(board0x88, 0, undo.board0x88, 0, board0x88.length);
+		System.arraycopy(bitboards, 0, undo.bitboards, 0, BITBOARDS_COUNT);
+		undo.whiteOccupancy = whiteOccupancy;
+		undo.blackOccupancy = blackOccupancy;
+		undo.whitePinnedPieces = whitePinnedPieces;
+		undo.blackPinnedPieces = blackPinnedPieces;
+		undo.validPins = validPins;
+		undo.flags = flags;
+		undo.enPassantSquare = enPassantSquare;
+		undo.zobristKey = zobristKey;
+		undo.halfmoveClock = halfmoveClock;
+		undo.fullMoveCounter = fullMoveCounter;
+		undo.from = from;
+		undo.to = to;
+		undo.promotion = promotion;
+	}
+
+	private void applyMove(int move) {
+		byte from = Move.getFrom(move);
+		byte to = Move.getTo(move);
+		if (Move.isDoublePush(move)) {
+			byte futureEnPassantSquare = isEnPassantLegal(to) ? (byte) ((from + to) / 2) : NULL;
+			applyMove(from, to, null, futureEnPassantSquare, NULL);
+		} else if (Move.isCastling(move)) {
+			byte rookToCastle = Square0x88.from07(getFile(to) == File.C ? File.A : File.H, getRank(from));
+			applyMove(from, to, null, NULL, rookToCastle);
+		} else {
+			applyMove(from, to, Move.getPromotion(move), NULL, NULL);
 		}
-		return fromPseudoLegalMove(from, to, null, enPassantSquare, NULL);
 	}
 
 	/**
@@ -162,23 +350,21 @@ public class State {
 		if (getRank(king) != getRank(doublePushTo)) {
 			return true;
 		}
-		byte[] rooks = getRank(doublePushTo) == Rank._4 ? pieces.whiteRooks : pieces.blackRooks;
-		int rooksCount = getRank(doublePushTo) == Rank._4 ? pieces.whiteRooksCount : pieces.blackRooksCount;
-		if (!isEnPassantLegal(king, rooks, rooksCount)) {
+		if (!isEnPassantLegal(king, getRank(doublePushTo) == Rank._4 ? Content.WHITE_ROOK : Content.BLACK_ROOK)) {
 			return false;
 		}
-		byte[] queens = getRank(doublePushTo) == Rank._4 ? pieces.whiteQueens : pieces.blackQueens;
-		int queensCount = getRank(doublePushTo) == Rank._4 ? pieces.whiteQueensCount : pieces.blackQueensCount;
-		return isEnPassantLegal(king, queens, queensCount);
+		return isEnPassantLegal(king, getRank(doublePushTo) == Rank._4 ? Content.WHITE_QUEEN : Content.BLACK_QUEEN);
 	}
 
-	private boolean isEnPassantLegal(byte king, byte[] rooklikes, int rooklikesCount) {
+	private boolean isEnPassantLegal(byte king, Content rooklike) {
+		int rooklikesCount = pieces.getCount(rooklike);
 		for (int i = 0; i < rooklikesCount; i++) {
-			if (getRank(rooklikes[i]) != getRank(king)) {
+			byte rooklike0x88 = pieces.getSquare(rooklike, i);
+			if (getRank(rooklike0x88) != getRank(king)) {
 				continue;
 			}
-			int fileFrom = Math.min(getFile(king), getFile(rooklikes[i])) + 1;
-			int fileTo = Math.max(getFile(king), getFile(rooklikes[i]));
+			int fileFrom = Math.min(getFile(king), getFile(rooklike0x88)) + 1;
+			int fileTo = Math.max(getFile(king), getFile(rooklike0x88));
 			int piecesBetweenCount = 0;
 			for (int file = fileFrom; file < fileTo; file++) {
 				if (getContent(file, getRank(king)) != Content.EMPTY) {
@@ -192,115 +378,176 @@ public class State {
 		return true;
 	}
 
-	State fromPseudoLegalMoveWithPromotion(byte from, byte to, Content promotion) {
-		assert promotion != null;
-		State nextState = fromPseudoLegalMove(from, to, promotion, NULL, NULL);
-		nextState.promotion = promotion;
-		return nextState;
-	}
-
-	State fromLegalQueensideCastling(byte kingFrom, byte kingTo) {
-		byte rookToCastle = Square0x88.from07(File.A,  getRank(kingFrom));
-		return fromPseudoLegalMove(kingFrom, kingTo, null, NULL, rookToCastle);
-	}
-
-	State fromLegalKingsideCastling(byte kingFrom, byte kingTo) {
-		byte rookToCastle = Square0x88.from07(File.H, getRank(kingFrom));
-		return fromPseudoLegalMove(kingFrom, kingTo, null, NULL, rookToCastle);
-	}
-
 	/**
-	 * Generates new BoardState based on move. Typical move without special events.
+	 * En passant removes two pawns from a line at once which pins don't account for. It's also the only way the en
+	 * passant square given in FEN is validated. The move is rare enough to be verified by making it.
 	 */
-	State fromPseudoLegalMove(byte from, byte to) {
-		return fromPseudoLegalMove(from, to, null, NULL, NULL);
+	private boolean isEnPassantLegal(int enPassantMove) {
+		makeMove(enPassantMove);
+		boolean isLegal = isLegal();
+		unmakeMove();
+		return isLegal;
 	}
 
 	/**
-	 * Generates new BoardState based on move. It does not verify game rules - assumes input is a legal move.
-	 * This is the root method - it covers all cases. All 'overload' methods should call this one.
+	 * Updates this state according to the move. It does not verify game rules - assumes input is a legal move.
+	 * This is the root method - it covers all cases. All moves made on State are made by this one.
 	 */
-	private State fromPseudoLegalMove(byte from, byte to, Content promotion, byte futureEnPassantSquare,
-									  byte rookCastleFrom) {
+	private void applyMove(byte from, byte to, Content promotion, byte futureEnPassantSquare, byte rookCastleFrom) {
 		assert from != to : from + "->" + to + " is no move";
 		assert inBounds(from) : "invalid from square: " + from;
 		assert inBounds(to) : "invalid to square: " + to;
-		short[] board0x88Copy = board0x88.clone();
-		PieceLists piecesCopy = pieces.clone();
 
-		//  update boardCopy
-		Content movedPiece = Content.fromShort(board0x88Copy[from]);
+		//  update board
+		Content movedPiece = getContent(from);
 		assert movedPiece != Content.EMPTY : from + "->" + to + " moves nothing";
 		assert movedPiece.isWhite == test(WHITE_TURN) : "Moved " + movedPiece + " on " + (test(WHITE_TURN) ? "white" : "black") + " turn";
-		board0x88Copy[from] = Content.EMPTY.asByte;
-
-		Content capturedPiece = Content.fromShort(board0x88Copy[to]);
-		assert capturedPiece != Content.BLACK_KING && capturedPiece != Content.WHITE_KING : from + "->" + to + " is taking king";
-		board0x88Copy[to] = movedPiece.asByte;
-
-		piecesCopy.move(movedPiece, from, to);
+		zobristKey ^= Zobrist.flags(flags) ^ enPassantKey();
 
-		byte squareWithPawnCapturedEnPassant = NULL;
+		byte capturedSquare = to;
 		if (enPassantSquare == to) {
 			if (movedPiece == Content.WHITE_PAWN) {
-				squareWithPawnCapturedEnPassant = Direction.move(to, Direction.S);
-				capturedPiece = Content.fromShort(board0x88Copy[squareWithPawnCapturedEnPassant]);
-				board0x88Copy[squareWithPawnCapturedEnPassant] = Content.EMPTY.asByte;
+				capturedSquare = Direction.move(to, Direction.S);
 			} else if (movedPiece == Content.BLACK_PAWN) {
-				squareWithPawnCapturedEnPassant = Direction.move(to, Direction.N);
-				capturedPiece = Content.fromShort(board0x88Copy[squareWithPawnCapturedEnPassant]);
-				board0x88Copy[squareWithPawnCapturedEnPassant] = Content.EMPTY.asByte;
+				capturedSquare = Direction.move(to, Direction.N);
 			}
-		} else if (rookCastleFrom != NULL) {
-			board0x88Copy[rookCastleFrom] = Content.EMPTY.asByte;
+		}
+		Content capturedPiece = getContent(capturedSquare);
+		assert capturedPiece != Content.BLACK_KING && capturedPiece != Content.WHITE_KING : from + "->" + to + " is taking king";
+		if (capturedPiece != Content.EMPTY) {
+			assert movedPiece.isWhite != capturedPiece.isWhite : from + "->" + to + " is a friendly capture";
+			removePiece(capturedSquare);
+			pieces.kill(capturedPiece, capturedSquare);
+		}
+
+		removePiece(from);
+		putPiece(promotion != null ? promotion : movedPiece, to);
+		pieces.move(movedPiece, from, to);
+		if (promotion != null) {
+			pieces.promote(to, promotion);
+		}
+
+		if (rookCastleFrom != NULL) {
 			Content rook = test(WHITE_TURN) ? Content.WHITE_ROOK : Content.BLACK_ROOK;
 			byte rookDestination;
 			if (getFile(rookCastleFrom) == File.A) {
 				rookDestination = test(WHITE_TURN) ? Square0x88.D1 : Square0x88.D8;
-				board0x88Copy[rookDestination] = rook.asByte;
 			} else {
 				rookDestination = test(WHITE_TURN) ? Square0x88.F1 : Square0x88.F8;
-				board0x88Copy[rookDestination] = rook.asByte;
 			}
+			removePiece(rookCastleFrom);
+			putPiece(rook, rookDestination);
 			// update pieces lists
-			piecesCopy.move(rook, rookCastleFrom, rookDestination);
-		} else if (promotion != null) {
-			board0x88Copy[to] = promotion.asByte;
-			piecesCopy.promote(to, promotion);
+			pieces.move(rook, rookCastleFrom, rookDestination);
 		}
 
-		if (capturedPiece != Content.EMPTY) {
-			assert movedPiece.isWhite != capturedPiece.isWhite : from + "->" + to + " is a friendly capture";
-			piecesCopy.kill(capturedPiece, squareWithPawnCapturedEnPassant != NULL ? squareWithPawnCapturedEnPassant : to);
-		}
-
-		int flagsCopy = flags ^ WHITE_TURN;
+		int newFlags = flags ^ WHITE_TURN;
 		if (from == Square0x88.E1) {
-			flagsCopy &= ~(WHITE_KS_CASTLE_POSSIBLE | WHITE_QS_CASTLE_POSSIBLE);
+			newFlags &= ~(WHITE_KS_CASTLE_POSSIBLE | WHITE_QS_CASTLE_POSSIBLE);
 		} else if (from == Square0x88.E8) {
-			flagsCopy &= ~(BLACK_KS_CASTLE_POSSIBLE | BLACK_QS_CASTLE_POSSIBLE);
+			newFlags &= ~(BLACK_KS_CASTLE_POSSIBLE | BLACK_QS_CASTLE_POSSIBLE);
 		} else if (from == Square0x88.A1) {
-			flagsCopy &= ~WHITE_QS_CASTLE_POSSIBLE;
+			newFlags &= ~WHITE_QS_CASTLE_POSSIBLE;
 		} else if (from == Square0x88.H1) {
-			flagsCopy &= ~WHITE_KS_CASTLE_POSSIBLE;
+			newFlags &= ~WHITE_KS_CASTLE_POSSIBLE;
 		} else if (from == Square0x88.A8) {
-			flagsCopy &= ~BLACK_QS_CASTLE_POSSIBLE;
+			newFlags &= ~BLACK_QS_CASTLE_POSSIBLE;
 		} else if (from == Square0x88.H8) {
-			flagsCopy &= ~BLACK_KS_CASTLE_POSSIBLE;
+			newFlags &= ~BLACK_KS_CASTLE_POSSIBLE;
 		}
 		if (to == A1) {
-			flagsCopy &= ~WHITE_QS_CASTLE_POSSIBLE;
+			newFlags &= ~WHITE_QS_CASTLE_POSSIBLE;
 		} else if (to == H1) {
-			flagsCopy &= ~WHITE_KS_CASTLE_POSSIBLE;
+			newFlags &= ~WHITE_KS_CASTLE_POSSIBLE;
 		} else if (to == A8) {
-			flagsCopy &= ~BLACK_QS_CASTLE_POSSIBLE;
+			newFlags &= ~BLACK_QS_CASTLE_POSSIBLE;
 		} else if (to == H8) {
-			flagsCopy &= ~BLACK_KS_CASTLE_POSSIBLE;
+			newFlags &= ~BLACK_KS_CASTLE_POSSIBLE;
+		}
+
+		if (!test(WHITE_TURN)) {
+			fullMoveCounter++;
+		}
+		flags = (byte) newFlags;
+		enPassantSquare = futureEnPassantSquare;
+		zobristKey ^= Zobrist.flags(flags) ^ enPassantKey();
+		halfmoveClock = 0;
+		this.from = from;
+		this.to = to;
+		this.promotion = promotion;
+
+		assert areChecksConsistent() : "Incrementally updated checks differ from the initialized ones\n" + this;
+		assert zobristKey == computeZobristKey() : "Incrementally updated zobrist key differs from the computed one\n" + this;
+		validPins = 0;
+	}
+
+	private long computeZobristKey() {
+		long key = Zobrist.flags(flags) ^ enPassantKey();
+		for (int i = 0; i < board0x88.length; i++) {
+			byte square = (byte) i;
+			if (inBounds(square) && getContent(square) != Content.EMPTY) {
+				key ^= Zobrist.piece(getContent(square), square);
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * En passant square is hashed only when a pawn can capture on it. Otherwise the same positions reached by
+	 * different move orders would get different keys.
+	 */
+	private long enPassantKey() {
+		if (enPassantSquare == NULL) {
+			return 0;
+		}
+		boolean isWhiteTurn = test(WHITE_TURN);
+		long pawns = bitboards[isWhiteTurn ? Content.WHITE_PAWN.asByte : Content.BLACK_PAWN.asByte];
+		return (Attacks.pawn(!isWhiteTurn, Bitboard.fromSquare0x88(enPassantSquare)) & pawns) != 0
+				? Zobrist.enPassant(enPassantSquare) : 0;
+	}
+
+	public long getZobristKey() {
+		return zobristKey;
+	}
+
+	private void initBitboards() {
+		for (int i = 0; i < board0x88.length; i++) {
+			byte square = (byte) i;
+			if (inBounds(square) && getContent(square) != Content.EMPTY) {
+				putOnBitboards(getContent(square), square);
+			}
+		}
+	}
+
+	private void putOnBitboards(Content piece, byte square0x88) {
+		long squareBit = Bitboard.of(square0x88);
+		bitboards[piece.asByte] |= squareBit;
+		if (piece.isWhite) {
+			whiteOccupancy |= squareBit;
+		} else {
+			blackOccupancy |= squareBit;
+		}
+	}
+
+	private void removeFromBitboards(Content piece, byte square0x88) {
+		long squareBit = Bitboard.of(square0x88);
+		bitboards[piece.asByte] &= ~squareBit;
+		if (piece.isWhite) {
+			whiteOccupancy &= ~squareBit;
+		} else {
+			blackOccupancy &= ~squareBit;
 		}
+	}
 
-		int newFullMoveClock = test(WHITE_TURN) ? fullMoveCounter : fullMoveCounter + 1;
-		return new State(board0x88Copy, piecesCopy, (byte) flagsCopy, futureEnPassantSquare, (byte)0, newFullMoveClock,
-				from, to);
+	public static boolean isBitboardMode() {
+		return bitboardMode;
+	}
+
+	/**
+	 * Switches between bitboard and 0x88 sliding pieces. Don't switch while states are being searched.
+	 */
+	public static void setBitboardMode(boolean bitboardMode) {
+		State.bitboardMode = bitboardMode;
 	}
 
 	public boolean test(int flagMask) {
@@ -340,7 +587,7 @@ public class State {
 				short contentAsShort = board0x88[Square0x88.from07(file,rank)];
 				sbCheckFlags.append(Utils.checkCountsToString(contentAsShort)).append('|');
 
-				Pin pinType = pinnedPieces[Square0x88.to8x8Square(square)];
+				Pin pinType = getPin(square);
 				sbPins.append(" ").append(pinType != null ? pinType.symbol : ' ').append("  |");
 			}
 			sb.append(sbCheckFlags).append(sbPins)
@@ -363,6 +610,10 @@ public class State {
 		return Content.fromShort(board0x88[square0x88]);
 	}
 
+	byte getEnPassantSquare() {
+		return enPassantSquare;
+	}
+
 	private boolean isPromotingSquare(byte square0x88) {
 		return test(WHITE_TURN) ? getRank(square0x88) == Rank.WHITE_PROMOTION_RANK : getRank(square0x88) == Rank.BLACK_PROMOTION_RANK;
 	}
@@ -402,24 +653,81 @@ public class State {
 		}
 	}
 
-	private void initChecksAroundKings() {
-		initChecksAroundKing(BLACK);
-		initChecksAroundKing(WHITE);
-		initSquaresInCheckByKings();
+	/**
+	 * @return pieces absolutely pinned to the king of given color. Pins are initialized on first call after a move.
+	 */
+	private long getPinnedPieces(boolean isKingWhite) {
+		int validFlag = isKingWhite ? WHITE_PINS_VALID : BLACK_PINS_VALID;
+		if ((validPins & validFlag) == 0) {
+			initPinnedPieces(isKingWhite);
+			validPins |= validFlag;
+		}
+		return isKingWhite ? whitePinnedPieces : blackPinnedPieces;
 	}
 
-	private void initPinnedPieces() {
-		byte whiteKing = pieces.getWhiteKing();
-		byte blackKing = pieces.getBlackKing();
-		assert getContent(whiteKing) == Content.WHITE_KING : "Corrupted white king position";
-		assert getContent(blackKing) == Content.BLACK_KING : "Corrupted black king position";
+	/**
+	 * @return line to which movement of piece on square0x88 is limited or null if it's not pinned
+	 */
+	private Pin getPin(byte square0x88) {
+		Content piece = getContent(square0x88);
+		if (piece == Content.EMPTY || (getPinnedPieces(piece.isWhite) & Bitboard.of(square0x88)) == 0) {
+			return null;
+		}
+		byte king = piece.isWhite ? pieces.getWhiteKing() : pieces.getBlackKing();
+		return Pin.fromDeltas(Integer.signum(getFile(square0x88) - getFile(king)),
+				Integer.signum(getRank(square0x88) - getRank(king)));
+	}
 
-		for (Square sq : Square.values()) {
-			pinnedPieces[sq.ordinal()] = null;
+	private void initPinnedPieces(boolean isKingWhite) {
+		byte king = isKingWhite ? pieces.getWhiteKing() : pieces.getBlackKing();
+		assert getContent(king) == (isKingWhite ? Content.WHITE_KING : Content.BLACK_KING) : "Corrupted king position";
+
+		if (isKingWhite) {
+			whitePinnedPieces = Bitboard.EMPTY;
+		} else {
+			blackPinnedPieces = Bitboard.EMPTY;
 		}
+		if (bitboardMode) {
+			initPinnedPiecesByBitboards(king, isKingWhite);
+		} else {
+			initPinnedPieces(king, isKingWhite);
+		}
+	}
+
+	private void addPinnedPiece(byte square0x88, boolean isPinnedToWhiteKing) {
+		if (isPinnedToWhiteKing) {
+			whitePinnedPieces |= Bitboard.of(square0x88);
+		} else {
+			blackPinnedPieces |= Bitboard.of(square0x88);
+		}
+	}
 
-		initPinnedPieces(whiteKing, WHITE);
-		initPinnedPieces(blackKing, BLACK);
+	/**
+	 * Sliders seen from the king through pieces of king's color are pin candidates.
+	 * A piece is pinned when it's the only one between such slider and the king.
+	 */
+	private void initPinnedPiecesByBitboards(byte king0x88, boolean isKingWhite) {
+		int king = Bitboard.fromSquare0x88(king0x88);
+		long friendlyPieces = isKingWhite ? whiteOccupancy : blackOccupancy;
+		long enemyPieces = isKingWhite ? blackOccupancy : whiteOccupancy;
+		long enemyQueens = bitboards[isKingWhite ? Content.BLACK_QUEEN.asByte : Content.WHITE_QUEEN.asByte];
+		long enemyRooks = bitboards[isKingWhite ? Content.BLACK_ROOK.asByte : Content.WHITE_ROOK.asByte];
+		long enemyBishops = bitboards[isKingWhite ? Content.BLACK_BISHOP.asByte : Content.WHITE_BISHOP.asByte];
+
+		long pinners = (Attacks.rook(king, enemyPieces) & (enemyRooks | enemyQueens))
+				| (Attacks.bishop(king, enemyPieces) & (enemyBishops | enemyQueens));
+		while (pinners != Bitboard.EMPTY) {
+			int pinner = Bitboard.first(pinners);
+			long piecesBetween = Attacks.between(king, pinner) & friendlyPieces;
+			if (piecesBetween != Bitboard.EMPTY && !Bitboard.hasMoreThanOne(piecesBetween)) {
+				if (isKingWhite) {
+					whitePinnedPieces |= piecesBetween;
+				} else {
+					blackPinnedPieces |= piecesBetween;
+				}
+			}
+			pinners = Bitboard.withoutFirst(pinners);
+		}
 	}
 
 	private void initPinnedPieces(byte king, boolean isPinnedToWhiteKing) {
@@ -431,46 +739,49 @@ public class State {
 	// TODO could use some smarter 0x88 arithmetic for this?
 	private void initPinsByBishops(byte king, boolean isPinnedToWhiteKing) {
 
-		byte[] bishops = isPinnedToWhiteKing ? pieces.blackBishops : pieces.whiteBishops;
-		int bishopsCount = isPinnedToWhiteKing ? pieces.blackBishopsCount : pieces.whiteBishopsCount;
+		Content bishop = isPinnedToWhiteKing ? Content.BLACK_BISHOP : Content.WHITE_BISHOP;
+		int bishopsCount = pieces.getCount(bishop);
 
 		for (int i = 0; i < bishopsCount; i++) {
-			int deltaRank = getRank(bishops[i]) - getRank(king);
-			int deltaFile = getFile(bishops[i]) - getFile(king);
+			byte bishop0x88 = pieces.getSquare(bishop, i);
+			int deltaRank = getRank(bishop0x88) - getRank(king);
+			int deltaFile = getFile(bishop0x88) - getFile(king);
 
 			if (Math.abs(deltaFile) == Math.abs(deltaRank)) {
-				initPinByBishop(king, isPinnedToWhiteKing, bishops[i]);
+				initPinByBishop(king, isPinnedToWhiteKing, bishop0x88);
 			}
 		}
 	}
 	
 	private void initPinsByRooks(byte king0x88, boolean isPinnedToWhiteKing) {
-		byte[] rooks = isPinnedToWhiteKing ? pieces.blackRooks : pieces.whiteRooks;
-		int rooksCount = isPinnedToWhiteKing ? pieces.blackRooksCount : pieces.whiteRooksCount;
+		Content rook = isPinnedToWhiteKing ? Content.BLACK_ROOK : Content.WHITE_ROOK;
+		int rooksCount = pieces.getCount(rook);
 
 		for (int i = 0; i < rooksCount; i++) {
-			if (getRank(king0x88) == getRank(rooks[i])) {
-				initRankPin(king0x88, isPinnedToWhiteKing, rooks[i]);
-			} else if (getFile(king0x88) == getFile(rooks[i])) {
-				initFilePin(king0x88, isPinnedToWhiteKing, rooks[i]);
+			byte rook0x88 = pieces.getSquare(rook, i);
+			if (getRank(king0x88) == getRank(rook0x88)) {
+				initRankPin(king0x88, isPinnedToWhiteKing, rook0x88);
+			} else if (getFile(king0x88) == getFile(rook0x88)) {
+				initFilePin(king0x88, isPinnedToWhiteKing, rook0x88);
 			}
 		}
 	}
 
 	private void initPinsByQueens(byte king, boolean isPinnedToWhiteKing) {
-		byte[] queens = isPinnedToWhiteKing ? pieces.blackQueens : pieces.whiteQueens;
-		int queensCount = isPinnedToWhiteKing ? pieces.blackQueensCount : pieces.whiteQueensCount;
+		Content queen = isPinnedToWhiteKing ? Content.BLACK_QUEEN : Content.WHITE_QUEEN;
+		int queensCount = pieces.getCount(queen);
 
 		for (int i = 0; i < queensCount; i++) {
-			int deltaRank = getRank(queens[i]) - getRank(king);
-			int deltaFile = getFile(queens[i]) - getFile(king);
+			byte queen0x88 = pieces.getSquare(queen, i);
+			int deltaRank = getRank(queen0x88) - getRank(king);
+			int deltaFile = getFile(queen0x88) - getFile(king);
 
 			if (Math.abs(deltaFile) == Math.abs(deltaRank)) {
-				initPinByBishop(king, isPinnedToWhiteKing, queens[i]);
-			} else if (getRank(king) == getRank(queens[i])) {
-				initRankPin(king, isPinnedToWhiteKing, queens[i]);
-			} else if (getFile(king) == getFile(queens[i])) {
-				initFilePin(king, isPinnedToWhiteKing, queens[i]);
+				initPinByBishop(king, isPinnedToWhiteKing, queen0x88);
+			} else if (getRank(king) == getRank(queen0x88)) {
+				initRankPin(king, isPinnedToWhiteKing, queen0x88);
+			} else if (getFile(king) == getFile(queen0x88)) {
+				initFilePin(king, isPinnedToWhiteKing, queen0x88);
 			}
 		}
 	}
@@ -502,12 +813,12 @@ public class State {
 	}
 
 	private void initPin(byte king, boolean isKingWhite, byte slidingPieceSquare, byte direction) {
-		int candidate8x8index = -1;
+		byte candidate = NULL;
 		byte testedSquare = Direction.move(king, direction);
 		while (true) {
 			if (testedSquare == slidingPieceSquare) {
-				if (candidate8x8index != -1) {
-					pinnedPieces[candidate8x8index] = Pin.fromDirection(direction);
+				if (candidate != NULL) {
+					addPinnedPiece(candidate, isKingWhite);
 				}
 				return;
 			}
@@ -517,8 +828,8 @@ public class State {
 					// obstructed by piece of same color as sliding piece
 					return;
 				}
-				if (candidate8x8index == -1) {
-					candidate8x8index = Square0x88.to8x8Square(testedSquare);
+				if (candidate == NULL) {
+					candidate = testedSquare;
 				} else {
 					// found second piece obstructing ray
 					return;
@@ -528,235 +839,232 @@ public class State {
 		}
 	}
 
-	// TODO can it be improved with 'smart' 0x88 arithmetic?
-	private void initChecksAroundKing(boolean isCheckedByWhite) {
-		byte king = isCheckedByWhite ? pieces.getBlackKing() : pieces.getWhiteKing();
-		boolean castlingImpossible;
-		if (isCheckedByWhite) {
-			castlingImpossible = !(test(BLACK_KS_CASTLE_POSSIBLE) || test(BLACK_QS_CASTLE_POSSIBLE));
-		} else {
-			castlingImpossible = !(test(WHITE_KS_CASTLE_POSSIBLE) || test(WHITE_QS_CASTLE_POSSIBLE));
+	/**
+	 * Initializes checks on all squares from scratch. After that they are updated incrementally by removePiece() and
+	 * putPiece().
+	 */
+	private void initChecks() {
+		for (int i = 0; i < board0x88.length; i++) {
+			byte square = (byte) i;
+			if (!inBounds(square)) {
+				continue;
+			}
+			Content piece = getContent(square);
+			if (piece != Content.EMPTY && !(bitboardMode && isSlidingPiece(piece))) {
+				updateChecksByPiece(piece, square, 1);
+			}
+		}
+		if (bitboardMode) {
+			initChecksBySlidingPieces(pieces.getBlackKing(), WHITE);
+			initChecksBySlidingPieces(pieces.getWhiteKing(), BLACK);
 		}
+	}
 
-		if (isCheckedByWhite) {
-			initChecksByPawns(king, castlingImpossible, isCheckedByWhite, pieces.whitePawns, pieces.whitePawnsCount);
-			initChecksByKnights(king, castlingImpossible, isCheckedByWhite, pieces.whiteKnights, pieces.whiteKnightsCount);
-			initChecksByBishops(king, isCheckedByWhite, pieces.whiteBishops, pieces.whiteBishopsCount);
-			initChecksByRooks(king, isCheckedByWhite, pieces.whiteRooks, pieces.whiteRooksCount);
-			initChecksByQueens(king, isCheckedByWhite, pieces.whiteQueens, pieces.whiteQueensCount);
-		} else {
-			initChecksByPawns(king, castlingImpossible, isCheckedByWhite, pieces.blackPawns, pieces.blackPawnsCount);
-			initChecksByKnights(king, castlingImpossible, isCheckedByWhite, pieces.blackKnights, pieces.blackKnightsCount);
-			initChecksByBishops(king, isCheckedByWhite, pieces.blackBishops, pieces.blackBishopsCount);
-			initChecksByRooks(king, isCheckedByWhite, pieces.blackRooks, pieces.blackRooksCount);
-			initChecksByQueens(king, isCheckedByWhite, pieces.blackQueens, pieces.blackQueensCount);
+	/**
+	 * Enemy king does not block sliding pieces so that it can't step back along the checking line.
+	 */
+	private void initChecksBySlidingPieces(byte king0x88, boolean isCheckedByWhite) {
+		long occupied = (whiteOccupancy | blackOccupancy) & ~Bitboard.of(king0x88);
+		long queens = bitboards[isCheckedByWhite ? Content.WHITE_QUEEN.asByte : Content.BLACK_QUEEN.asByte];
+		long bishoplikes = queens | bitboards[isCheckedByWhite ? Content.WHITE_BISHOP.asByte : Content.BLACK_BISHOP.asByte];
+		long rooklikes = queens | bitboards[isCheckedByWhite ? Content.WHITE_ROOK.asByte : Content.BLACK_ROOK.asByte];
+		while (bishoplikes != Bitboard.EMPTY) {
+			incrementChecksOnSquares(Attacks.bishop(Bitboard.first(bishoplikes), occupied), isCheckedByWhite);
+			bishoplikes = Bitboard.withoutFirst(bishoplikes);
+		}
+		while (rooklikes != Bitboard.EMPTY) {
+			incrementChecksOnSquares(Attacks.rook(Bitboard.first(rooklikes), occupied), isCheckedByWhite);
+			rooklikes = Bitboard.withoutFirst(rooklikes);
 		}
 	}
 
-	private void initChecksByPawns(byte king, boolean castlingImpossible, boolean isCheckedByWhite,
-								   byte[] pawns, byte pawnsCount) {
-		if (pawnsCount == 0) {
-			return;
+	private void incrementChecksOnSquares(long squares, boolean isCheckedByWhite) {
+		while (squares != Bitboard.EMPTY) {
+			updateChecksOnSquare(Bitboard.toSquare0x88(Bitboard.first(squares)), isCheckedByWhite, 1);
+			squares = Bitboard.withoutFirst(squares);
 		}
+	}
 
-		Utils.sortByFiles(pawns, pawnsCount);
+	/**
+	 * Debug check that incrementally updated checks are the same as checks initialized from scratch
+	 */
+	private boolean areChecksConsistent() {
+		short[] updatedBoard = board0x88.clone();
+		resetSquaresInCheck();
+		initChecks();
+		boolean consistent = Arrays.equals(updatedBoard, board0x88);
+		System.arraycopy(updatedBoard, 0, board0x88, 0, board0x88.length);
+		return consistent;
+	}
 
-		byte minKingSafeDistance = (byte)(castlingImpossible ? 2 : 3);
-		for (int i = pawnsCount / 2; i >= 0; i--) {
-			if (getFile(pawns[i]) < getFile(king) - minKingSafeDistance) {
-				break;
-			}
-			initSquaresInCheckByPawn(pawns[i], isCheckedByWhite);
-		}
-		for (int i = pawnsCount / 2 + 1; i < pawnsCount; i++) {
-			if (getFile(pawns[i]) > getFile(king) + minKingSafeDistance) {
-				break;
-			}
-			initSquaresInCheckByPawn(pawns[i], isCheckedByWhite);
-		}
+	/**
+	 * Takes the piece off the board together with its checks. Sliding pieces blocked by it now check further.
+	 */
+	private void removePiece(byte square0x88) {
+		Content piece = getContent(square0x88);
+		updateChecksByPiece(piece, square0x88, -1);
+		board0x88[square0x88] &= ~(SquareFormat.PIECE_TYPE_MASK | SquareFormat.IS_WHITE_PIECE_FLAG);
+		removeFromBitboards(piece, square0x88);
+		zobristKey ^= Zobrist.piece(piece, square0x88);
+		updateChecksBeyondBlocker(piece, square0x88, 1);
 	}
 
-	private void initChecksByKnights(byte king, boolean castlingImpossible, boolean isCheckedByWhite, byte[] knights,
-			byte knightsCount) {
-		byte minKingSafeDistance = (byte)(castlingImpossible ? 4 : 5);
-		for (int i = 0; i < knightsCount; i++) {
-			if (Math.abs(getFile(knights[i]) - getFile(king)) < minKingSafeDistance && Math.abs(getRank(knights[i]) - getRank(king)) < minKingSafeDistance) {
-				initSquaresInCheckByKnight(knights[i],isCheckedByWhite);
+	/**
+	 * Puts the piece on an empty square together with its checks. Sliding pieces blocked by it no longer check
+	 * squares behind it.
+	 */
+	private void putPiece(Content piece, byte square0x88) {
+		assert getContent(square0x88) == Content.EMPTY : "Putting " + piece + " on occupied " + Square0x88.toString(square0x88);
+		updateChecksBeyondBlocker(piece, square0x88, -1);
+		board0x88[square0x88] |= piece.asByte;
+		putOnBitboards(piece, square0x88);
+		zobristKey ^= Zobrist.piece(piece, square0x88);
+		updateChecksByPiece(piece, square0x88, 1);
+	}
+
+	private void updateChecksBeyondBlocker(Content blocker, byte square0x88, int delta) {
+		for (byte direction : KING_DIRECTIONS) {
+			byte slidingPiece = findSlidingPieceCheckingAlong(square0x88, direction);
+			if (slidingPiece == NULL) {
+				continue;
+			}
+			boolean isSlidingPieceWhite = getContent(slidingPiece).isWhite;
+			Content enemyKing = isSlidingPieceWhite ? Content.BLACK_KING : Content.WHITE_KING;
+			if (blocker != enemyKing) {
+				updateChecksBySlidingPiece(square0x88, isSlidingPieceWhite, direction, delta);
 			}
 		}
 	}
 
-	private void initChecksByBishops(byte king0x88, boolean isCheckedByWhite, byte[] bishops, byte bishopsCount) {
-		for (int i = 0; i < bishopsCount; i++) {
-			byte deltaRank = (byte)(getRank(king0x88) - getRank(bishops[i]));
-
-			if (deltaRank > 0) {
-				// king above
-				initCheckFlagsBySlidingPiece(bishops[i], isCheckedByWhite, Direction.NW);
-				initCheckFlagsBySlidingPiece(bishops[i], isCheckedByWhite, Direction.NE);
-			} else if (deltaRank < 0) {
-				//king below
-				initCheckFlagsBySlidingPiece(bishops[i], isCheckedByWhite, Direction.SW);
-				initCheckFlagsBySlidingPiece(bishops[i], isCheckedByWhite, Direction.SE);
-			} else {
-				byte deltaFile = (byte) (getFile(king0x88) - getFile(bishops[i]));
-				if (deltaFile > 0) { // king to the right
-					initCheckFlagsBySlidingPiece(bishops[i], isCheckedByWhite, Direction.NE);
-					initCheckFlagsBySlidingPiece(bishops[i], isCheckedByWhite, Direction.SE);
-				} else {
-					initCheckFlagsBySlidingPiece(bishops[i], isCheckedByWhite, Direction.NW);
-					initCheckFlagsBySlidingPiece(bishops[i], isCheckedByWhite, Direction.SW);
+	/**
+	 * @return square of sliding piece checking square0x88 along the direction or NULL if there's none
+	 */
+	private byte findSlidingPieceCheckingAlong(byte square0x88, byte direction) {
+		byte backwards = (byte) -direction;
+		Content passedKing = Content.EMPTY;
+		byte square = Direction.move(square0x88, backwards);
+		while (inBounds(square)) {
+			Content piece = getContent(square);
+			if (piece == Content.WHITE_KING || piece == Content.BLACK_KING) {
+				if (passedKing != Content.EMPTY) {
+					return NULL;
 				}
+				passedKing = piece;
+			} else if (piece != Content.EMPTY) {
+				boolean seesThroughPassedKing = passedKing == Content.EMPTY || passedKing.isWhite != piece.isWhite;
+				return seesThroughPassedKing && isSlidingAlong(piece, direction) ? square : NULL;
 			}
+			square = Direction.move(square, backwards);
 		}
+		return NULL;
 	}
 
-	private void initChecksByRooks(byte king0x88, boolean isCheckedByWhite, byte[] rooks, byte rooksCount) {
-		for (int i = 0; i < rooksCount; i++) {
-			initCheckFlagsBySlidingPiece(rooks[i], isCheckedByWhite, Direction.N);
-			initCheckFlagsBySlidingPiece(rooks[i], isCheckedByWhite, Direction.S);
-
-			byte deltaRank = (byte)(getRank(king0x88) - getRank(rooks[i]));
-			if (isCloseEnoughToRank(deltaRank)) {
-				initCheckFlagsBySlidingPiece(rooks[i], isCheckedByWhite, Direction.E);
-				initCheckFlagsBySlidingPiece(rooks[i], isCheckedByWhite, Direction.W);
-			}
+	private static boolean isSlidingPiece(Content piece) {
+		switch (piece) {
+			case WHITE_BISHOP:
+			case BLACK_BISHOP:
+			case WHITE_ROOK:
+			case BLACK_ROOK:
+			case WHITE_QUEEN:
+			case BLACK_QUEEN:
+				return true;
+			default:
+				return false;
 		}
 	}
 
-	private boolean isCloseEnoughToRank(byte deltaRank) {
-		return Math.abs(deltaRank) <= 1;
+	private static boolean isSlidingAlong(Content piece, byte direction) {
+		boolean isOrthogonal = direction == Direction.N || direction == Direction.S
+				|| direction == Direction.E || direction == Direction.W;
+		switch (piece) {
+			case WHITE_QUEEN:
+			case BLACK_QUEEN:
+				return true;
+			case WHITE_ROOK:
+			case BLACK_ROOK:
+				return isOrthogonal;
+			case WHITE_BISHOP:
+			case BLACK_BISHOP:
+				return !isOrthogonal;
+			default:
+				return false;
+		}
 	}
 
-	private void initChecksByQueens(byte king, boolean isCheckedByWhite, byte[] queens, byte queensCount) {
-		for (int i = 0; i < queensCount; i++) {
-			byte deltaRank = (byte) (getRank(king) - getRank(queens[i]));
-			if (deltaRank > 1) { // king at least two ranks above
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.NE);
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.N);
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.NW);
-			} else if (deltaRank < -1) { // king at least two ranks below
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.SE);
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.S);
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.SW);
-			} else if (deltaRank > 0) { // king just above
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.NE);
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.N);
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.NW);
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.E);
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.W);
-			} else if (deltaRank < 0) { // king just below
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.SE);
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.S);
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.SW);
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.E);
-				initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.W);
-			} else { // same rank
-				byte deltaFile = (byte) (getFile(king) - getFile(queens[i]));
-				if (deltaFile > 0) { // king to the right
-					initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.N);
-					initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.NE);
-					initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.E);
-					initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.SE);
-					initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.S);
-				} else { // king to the left
-					initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.N);
-					initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.NW);
-					initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.W);
-					initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.SW);
-					initCheckFlagsBySlidingPiece(queens[i], isCheckedByWhite, Direction.S);
-				}
-			}
+	/**
+	 * Adds (delta = 1) or takes back (delta = -1) checks made by the piece standing on square0x88
+	 */
+	private void updateChecksByPiece(Content piece, byte square0x88, int delta) {
+		switch (piece) {
+			case WHITE_PAWN:
+			case BLACK_PAWN:
+				updateChecksByPawn(square0x88, piece.isWhite, delta);
+				break;
+			case WHITE_KNIGHT:
+			case BLACK_KNIGHT:
+				updateChecksByKnight(square0x88, piece.isWhite, delta);
+				break;
+			case WHITE_BISHOP:
+			case BLACK_BISHOP:
+				updateChecksBySlidingPiece(square0x88, piece.isWhite, BISHOP_DIRECTIONS, delta);
+				break;
+			case WHITE_ROOK:
+			case BLACK_ROOK:
+				updateChecksBySlidingPiece(square0x88, piece.isWhite, ROOK_DIRECTIONS, delta);
+				break;
+			case WHITE_QUEEN:
+			case BLACK_QUEEN:
+				updateChecksBySlidingPiece(square0x88, piece.isWhite, KING_DIRECTIONS, delta);
+				break;
+			case WHITE_KING:
+			case BLACK_KING:
+				updateChecksByKing(square0x88, piece.isWhite, delta);
+				break;
 		}
 	}
 
-	private void initSquaresInCheckByKnight(byte knightSquare0x88, boolean isCheckedByWhite) {
-		byte to = Direction.move(knightSquare0x88,Direction.NNE);
-		if (inBounds(to)) {
-			incrementChecksOnSquare(to, isCheckedByWhite);
-		}
-		to = Direction.move(knightSquare0x88,Direction.NEE);
-		if (inBounds(to)) {
-			incrementChecksOnSquare(to, isCheckedByWhite);
-		}
-		to = Direction.move(knightSquare0x88,Direction.SEE);
-		if (inBounds(to)) {
-			incrementChecksOnSquare(to, isCheckedByWhite);
-		}
-		to = Direction.move(knightSquare0x88,Direction.SSE);
-		if (inBounds(to)) {
-			incrementChecksOnSquare(to, isCheckedByWhite);
-		}
-		to = Direction.move(knightSquare0x88,Direction.SSW);
-		if (inBounds(to)) {
-			incrementChecksOnSquare(to, isCheckedByWhite);
-		}
-		to = Direction.move(knightSquare0x88,Direction.SWW);
-		if (inBounds(to)) {
-			incrementChecksOnSquare(to, isCheckedByWhite);
-		}
-		to = Direction.move(knightSquare0x88,Direction.NWW);
-		if (inBounds(to)) {
-			incrementChecksOnSquare(to, isCheckedByWhite);
+	private void updateChecksByPawn(byte from, boolean isCheckedByWhite, int delta) {
+		byte queensideCheck = Direction.move(from, isCheckedByWhite ? Direction.NW : Direction.SW);
+		if (inBounds(queensideCheck)) {
+			updateChecksOnSquare(queensideCheck, isCheckedByWhite, delta);
 		}
-		to = Direction.move(knightSquare0x88,Direction.NNW);
-		if (inBounds(to)) {
-			incrementChecksOnSquare(to, isCheckedByWhite);
+		byte kingsideCheck = Direction.move(from, isCheckedByWhite ? Direction.NE : Direction.SE);
+		if (inBounds(kingsideCheck)) {
+			updateChecksOnSquare(kingsideCheck, isCheckedByWhite, delta);
 		}
 	}
 
-	private void initSquaresInCheckByKings() {
-		byte whiteKing0x88 = pieces.getWhiteKing();
-		byte blackKing0x88 = pieces.getBlackKing();
-		assert getContent(whiteKing0x88) == Content.WHITE_KING : "Corrupted white king position";
-		assert getContent(blackKing0x88) == Content.BLACK_KING : "Corrupted black king position";
-		assert Math.abs(getRank(blackKing0x88) - getRank(whiteKing0x88)) > 1
-				|| Math.abs(getFile(blackKing0x88) - getFile(whiteKing0x88)) > 1 : "Kings to close. w: " + whiteKing0x88 + ", b: " + blackKing0x88;
-
-		initSquareInCheckByKing(whiteKing0x88, WHITE);
-		initSquareInCheckByKing(blackKing0x88, BLACK);
+	private void updateChecksByKnight(byte knightSquare0x88, boolean isCheckedByWhite, int delta) {
+		for (byte direction : KNIGHT_DIRECTIONS) {
+			byte to = Direction.move(knightSquare0x88, direction);
+			if (inBounds(to)) {
+				updateChecksOnSquare(to, isCheckedByWhite, delta);
+			}
+		}
 	}
 
-	private void initSquareInCheckByKing(byte king0x88, boolean isKingWhite) {
+	private void updateChecksByKing(byte king0x88, boolean isKingWhite, int delta) {
 		short checkFlag = isKingWhite ? SquareFormat.CHECK_BY_WHITE_KING : SquareFormat.CHECK_BY_BLACK_KING;
-		byte to = Direction.move(king0x88, Direction.E);
-		if (inBounds(to)) {
-			setFlag(to, checkFlag);
-		}
-		to = Direction.move(king0x88, Direction.NE);
-		if (inBounds(to)) {
-			setFlag(to, checkFlag);
-		}
-		to = Direction.move(king0x88, Direction.N);
-		if (inBounds(to)) {
-			setFlag(to, checkFlag);
-		}
-		to = Direction.move(king0x88, Direction.NW);
-		if (inBounds(to)) {
-			setFlag(to, checkFlag);
-		}
-		to = Direction.move(king0x88, Direction.W);
-		if (inBounds(to)) {
-			setFlag(to, checkFlag);
-		}
-		to = Direction.move(king0x88, Direction.SW);
-		if (inBounds(to)) {
-			setFlag(to, checkFlag);
-		}
-		to = Direction.move(king0x88, Direction.S);
-		if (inBounds(to)) {
-			setFlag(to, checkFlag);
+		assert delta < 0 || (board0x88[king0x88] & (isKingWhite ? SquareFormat.CHECK_BY_BLACK_KING : SquareFormat.CHECK_BY_WHITE_KING)) == 0
+				: "Kings too close. King put on " + Square0x88.toString(king0x88);
+		for (byte direction : KING_DIRECTIONS) {
+			byte to = Direction.move(king0x88, direction);
+			if (inBounds(to)) {
+				board0x88[to] = (short) (delta > 0 ? board0x88[to] | checkFlag : board0x88[to] & ~checkFlag);
+			}
 		}
-		to = Direction.move(king0x88, Direction.SE);
-		if (inBounds(to)) {
-			setFlag(to, checkFlag);
+	}
+
+	private void updateChecksBySlidingPiece(byte from, boolean isCheckedByWhite, byte[] directions, int delta) {
+		for (byte direction : directions) {
+			updateChecksBySlidingPiece(from, isCheckedByWhite, direction, delta);
 		}
 	}
 
-	private void initCheckFlagsBySlidingPiece(byte from, boolean isCheckedByWhite, byte direction) {
+	private void updateChecksBySlidingPiece(byte from, boolean isCheckedByWhite, byte direction, int delta) {
 		byte squareUnderCheck = Direction.move(from, direction);
 		while (inBounds(squareUnderCheck)) {
-			incrementChecksOnSquare(squareUnderCheck, isCheckedByWhite);
+			updateChecksOnSquare(squareUnderCheck, isCheckedByWhite, delta);
 			if (isSquareBlockingSlidingPiece(squareUnderCheck, isCheckedByWhite)) {
 				break;
 			}
@@ -774,33 +1082,12 @@ public class State {
 		return contentAsByte != enemyKing;
 	}
 
-	private void initSquaresInCheckByPawn(byte from, boolean isCheckedByWhite) {
-		byte queensideCheck = Direction.move(from, isCheckedByWhite ? Direction.NW : Direction.SW);
-		if (inBounds(queensideCheck)) {
-			incrementChecksOnSquare(queensideCheck, isCheckedByWhite);
-		}
-		byte kingsideCheck = Direction.move(from, isCheckedByWhite ? Direction.NE : Direction.SE);
-		if (inBounds(kingsideCheck)) {
-			incrementChecksOnSquare(kingsideCheck, isCheckedByWhite);
-		}
-	}
-
-	private void incrementChecksOnSquare(byte square0x88, boolean isCheckedByWhite) {
-		short contentAsShort = board0x88[square0x88];
+	private void updateChecksOnSquare(byte square0x88, boolean isCheckedByWhite, int delta) {
+		assert getChecksCount(square0x88, isCheckedByWhite) + delta >= 0
+				&& getChecksCount(square0x88, isCheckedByWhite) + delta <= SquareFormat.CHECKS_COUNT_MASK
+				: "Checks count out of range on " + Square0x88.toString(square0x88);
 		byte bitOffset = isCheckedByWhite ? SquareFormat.CHECKS_BY_WHITE_BIT_OFFSET : SquareFormat.CHECKS_BY_BLACK_BIT_OFFSET;
-		short checksCount = (short) ((contentAsShort >>> bitOffset) & SquareFormat.CHECKS_COUNT_MASK);
-		checksCount++;
-		checksCount <<= bitOffset;
-
-		short resettingMask = (short) ~(SquareFormat.CHECKS_COUNT_MASK << bitOffset);
-		contentAsShort = (short) (contentAsShort & resettingMask);
-
-		board0x88[square0x88] = (short) (contentAsShort | checksCount);
-	}
-
-	private void setFlag(byte square0x88, short flag) {
-		short contentAsShort = board0x88[square0x88];
-		board0x88[square0x88] = (short) (contentAsShort | flag);
+		board0x88[square0x88] = (short) (board0x88[square0x88] + (delta << bitOffset));
 	}
 
 	boolean isSquareCheckedBy(byte square0x88, boolean testChecksByWhite) {
@@ -818,143 +1105,474 @@ public class State {
 	}
 
 	public int countLegalMoves() {
-		if (isKingInCheck()) {
-			byte checkedKing = test(WHITE_TURN) ? pieces.getWhiteKing() : pieces.getBlackKing();
-			return generateLegalMovesWhenKingInCheck(null, checkedKing, GeneratorMode.ALL_MOVES);
-		}
-		return generatePseudoLegalMoves(null, GeneratorMode.ALL_MOVES);
+		return generateOrCountLegalMoves(null, GeneratorMode.ALL_MOVES);
 	}
 
-	public int countOtherSideLegalMoves() {
-		makeNullMove();
-		int legalMoves = countLegalMoves();
-		makeNullMove();
-		return legalMoves;
+	int countLegalMoves(GeneratorMode mode) {
+		return generateOrCountLegalMoves(null, mode);
 	}
 
-	private void makeNullMove() {
-		flags ^= WHITE_TURN;
+	/**
+	 * Counts legal moves of given side as if it was taking turn. Moves are counted from attack tables and occupancy
+	 * bitboards without generating them. En passant capture is counted only for the side taking turn as the en passant
+	 * square is of no use to the other side.
+	 */
+	public int countMobility(boolean isWhite) {
+		byte king0x88 = isWhite ? pieces.getWhiteKing() : pieces.getBlackKing();
+		if (isSquareCheckedBy(king0x88, !isWhite)) {
+			assert isWhite == test(WHITE_TURN) : "King of the side not taking turn is in check\n" + this;
+			return countLegalMoves();
+		}
+		long own = isWhite ? whiteOccupancy : blackOccupancy;
+		long enemy = isWhite ? blackOccupancy : whiteOccupancy;
+		long occupied = own | enemy;
+		long pinned = getPinnedPieces(isWhite);
+		int king = Bitboard.fromSquare0x88(king0x88);
+		int movesCount = 0;
+
+		long knights = bitboards[isWhite ? Content.WHITE_KNIGHT.asByte : Content.BLACK_KNIGHT.asByte] & ~pinned;
+		for (; knights != Bitboard.EMPTY; knights = Bitboard.withoutFirst(knights)) {
+			movesCount += Long.bitCount(Attacks.knight(Bitboard.first(knights)) & ~own);
+		}
+		long queens = bitboards[isWhite ? Content.WHITE_QUEEN.asByte : Content.BLACK_QUEEN.asByte];
+		long bishoplikes = queens | bitboards[isWhite ? Content.WHITE_BISHOP.asByte : Content.BLACK_BISHOP.asByte];
+		for (; bishoplikes != Bitboard.EMPTY; bishoplikes = Bitboard.withoutFirst(bishoplikes)) {
+			int from = Bitboard.first(bishoplikes);
+			movesCount += countMobility(from, Attacks.bishop(from, occupied) & ~own, pinned, king);
+		}
+		long rooklikes = queens | bitboards[isWhite ? Content.WHITE_ROOK.asByte : Content.BLACK_ROOK.asByte];
+		for (; rooklikes != Bitboard.EMPTY; rooklikes = Bitboard.withoutFirst(rooklikes)) {
+			int from = Bitboard.first(rooklikes);
+			movesCount += countMobility(from, Attacks.rook(from, occupied) & ~own, pinned, king);
+		}
+
+		int forward = isWhite ? 8 : -8;
+		int initialRank = isWhite ? Rank._2 : Rank._7;
+		int promotingRank = isWhite ? Rank._7 : Rank._2;
+		long pawns = bitboards[isWhite ? Content.WHITE_PAWN.asByte : Content.BLACK_PAWN.asByte];
+		for (; pawns != Bitboard.EMPTY; pawns = Bitboard.withoutFirst(pawns)) {
+			int from = Bitboard.first(pawns);
+			long targets = Attacks.pawn(isWhite, from) & enemy;
+			long push = 1L << (from + forward);
+			if ((push & occupied) == 0) {
+				targets |= push;
+				long doublePush = 1L << (from + 2 * forward);
+				if (Bitboard.getRank(from) == initialRank && (doublePush & occupied) == 0) {
+					targets |= doublePush;
+				}
+			}
+			int pawnMovesCount = countMobility(from, targets, pinned, king);
+			movesCount += Bitboard.getRank(from) == promotingRank ? 4 * pawnMovesCount : pawnMovesCount;
+		}
+		if (isWhite == test(WHITE_TURN) && enPassantSquare != NULL) {
+			long capturers = Attacks.pawn(!isWhite, Bitboard.fromSquare0x88(enPassantSquare))
+					& bitboards[isWhite ? Content.WHITE_PAWN.asByte : Content.BLACK_PAWN.asByte];
+			for (; capturers != Bitboard.EMPTY; capturers = Bitboard.withoutFirst(capturers)) {
+				if (isEnPassantLegal(Move.enPassant(Bitboard.toSquare0x88(Bitboard.first(capturers)), enPassantSquare))) {
+					movesCount++;
+				}
+			}
+		}
+
+		for (long targets = Attacks.king(king) & ~own; targets != Bitboard.EMPTY; targets = Bitboard.withoutFirst(targets)) {
+			if (canKingWalkOnSquare(Bitboard.toSquare0x88(Bitboard.first(targets)), isWhite)) {
+				movesCount++;
+			}
+		}
+		if (test(isWhite ? WHITE_QS_CASTLE_POSSIBLE : BLACK_QS_CASTLE_POSSIBLE) && squaresOkForQsCastling(isWhite)) {
+			movesCount++;
+		}
+		if (test(isWhite ? WHITE_KS_CASTLE_POSSIBLE : BLACK_KS_CASTLE_POSSIBLE) && squaresOkForKsCastling(isWhite)) {
+			movesCount++;
+		}
+		assert isWhite != test(WHITE_TURN) || movesCount == countLegalMoves()
+				: "Mobility " + movesCount + " differs from legal moves count " + countLegalMoves() + "\n" + this;
+		return movesCount;
+	}
+
+	/**
+	 * @return count of targets left to the piece after restricting them to the pin line
+	 */
+	private int countMobility(int from, long targets, long pinned, int king) {
+		if ((pinned & 1L << from) != 0) {
+			targets &= Attacks.line(king, from);
+		}
+		return Long.bitCount(targets);
 	}
 
 	public List<State> generateLegalTacticalMoves() {
-		return generateLegalMoves(GeneratorMode.TACTICAL_MOVES);
+		return generateLegalChildren(GeneratorMode.TACTICAL_MOVES);
 	}
 
 	public List<State> generateLegalMoves() {
-		return generateLegalMoves(GeneratorMode.ALL_MOVES);
+		return generateLegalChildren(GeneratorMode.ALL_MOVES);
+	}
+
+	/**
+	 * Child states are built lazily - only when accessed by get(). Each get() builds a new State so don't modify this
+	 * state with makeMove() while the list is in use.
+	 */
+	private List<State> generateLegalChildren(GeneratorMode mode) {
+		final int[] moves = new int[MAX_LEGAL_MOVES];
+		final int movesCount = generateLegalMoves(moves, mode);
+		return new AbstractList<State>() {
+			@Override
+			public State get(int index) {
+				if (index < 0 || index >= movesCount) {
+					throw new IndexOutOfBoundsException("Index: " + index + ", size: " + movesCount);
+				}
+				return fromMove(moves[index]);
+			}
+
+			@Override
+			public int size() {
+				return movesCount;
+			}
+		};
 	}
 
-	private List<State> generateLegalMoves(GeneratorMode mode) {
+	/**
+	 * Generates legal moves packed as ints (see {@link Move}).
+	 * @param outputMoves - leave this null to skip actual generation and just count the moves
+	 * @return number of legal moves
+	 */
+	public int generateLegalMoves(int[] outputMoves, GeneratorMode mode) {
 		assert isLegal() : "King is still left in check after previous move!\n" + this;
-		List<State> moves = new ArrayList<>(Config.MOVES_LIST_CAPACITY);
-		try {
+		return generateOrCountLegalMoves(outputMoves, mode);
+	}
 
+	/**
+	 * @param outputMoves - leave this null to skip actual generation and just count the moves
+	 */
+	private int generateOrCountLegalMoves(int[] outputMoves, GeneratorMode mode) {
+		this.outputMoves = outputMoves;
+		outputMovesCount = 0;
+		try {
 			if (isKingInCheck()) {
-				byte checkedKing = test(WHITE_TURN) ? pieces.getWhiteKing() : pieces.getBlackKing();
-				generateLegalMovesWhenKingInCheck(moves, checkedKing, mode);
-				return moves;
+				if (GeneratorMode.CHECKS != mode) {
+					byte checkedKing = test(WHITE_TURN) ? pieces.getWhiteKing() : pieces.getBlackKing();
+					generateEvasions(checkedKing, mode);
+				}
+			} else if (GeneratorMode.CHECKS == mode) {
+				generateQuietChecks();
+			} else {
+				generatePseudoLegalMoves(mode);
 			}
-
-			generatePseudoLegalMoves(moves, mode);
 		} catch (AssertionError ae) {
 			System.out.println("------------------FAILED ASSERTION IN MOVE GENERATION----------------------------");
 			System.out.println(" STATE: " + this);
 			throw ae;
+		} finally {
+			this.outputMoves = null;
 		}
-		return moves;
+		return outputMovesCount;
+	}
+
+	/**
+	 * Tells if move obtained elsewhere (eg. a killer move or a move from previous iteration) is legal in this state.
+	 * Only moves of the piece standing on the from square are generated to verify it.
+	 * @param move - move packed by {@link Move}
+	 */
+	public boolean isLegalMove(int move) {
+		byte from = Move.getFrom(move);
+		if (!isSameColorPieceOn(from)) {
+			return false;
+		}
+		if (scratchMoves == null) {
+			scratchMoves = new int[MAX_LEGAL_MOVES];
+		}
+		outputMoves = scratchMoves;
+		outputMovesCount = 0;
+		boolean isGenerated = false;
+		try {
+			generatePseudoLegalMovesOf(from);
+			for (int i = 0; i < outputMovesCount && !isGenerated; i++) {
+				isGenerated = scratchMoves[i] == move;
+			}
+		} finally {
+			outputMoves = null;
+		}
+		if (!isGenerated || !isKingInCheck()) {
+			return isGenerated;
+		}
+		makeMove(move);
+		boolean isLegal = isLegal();
+		unmakeMove();
+		return isLegal;
+	}
+
+	/**
+	 * Tells if move would be generated in {@link GeneratorMode#QUIET_MOVES} mode
+	 * @param move - move packed by {@link Move}
+	 */
+	public boolean isQuiet(int move) {
+		return !Move.isPromotion(move) && !Move.isEnPassant(move) && getContent(Move.getTo(move)) == Content.EMPTY;
 	}
 
 	boolean isKingInCheck() {
 		return isSquareCheckedBy(test(WHITE_TURN) ? pieces.getWhiteKing() : pieces.getBlackKing(), !test(WHITE_TURN));
 	}
 
+	/**
+	 * Static exchange evaluation - https://www.chessprogramming.org/Static_Exchange_Evaluation
+	 * Tells if the exchange on the target square started by the move wins at least threshold centipawns for the moving
+	 * side. Both sides recapture with their least valuable piece and may stop recapturing at any time. Pieces that left
+	 * for the target square uncover sliding pieces behind them (x-rays). Pins are not taken into account.
+	 * @param move - legal move packed by {@link Move}
+	 */
+	boolean isExchangeAtLeast(int move, int threshold) {
+		byte from = Move.getFrom(move);
+		byte to = Move.getTo(move);
+		Content mover = getContent(from);
+		Content promotion = Move.getPromotion(move);
+		Content onTarget = promotion != null ? promotion : mover;
+
+		int balance = exchangeValue(Move.isEnPassant(move) ? Content.WHITE_PAWN : getContent(to)) - threshold;
+		if (promotion != null) {
+			balance += exchangeValue(promotion) - exchangeValue(mover);
+		}
+		if (balance < 0) {
+			return false;
+		}
+		// from now on balance is what the opponent gains by recapturing
+		balance = exchangeValue(onTarget) - balance;
+		if (balance <= 0) {
+			return true;
+		}
+		long removed = Bitboard.of(from);
+		if (Move.isEnPassant(move)) {
+			removed |= Bitboard.of(Direction.move(to, mover.isWhite ? Direction.S : Direction.N));
+		} else if (!isSquareAttackedBy(to, !mover.isWhite) && findXrayAttacker(to, from, !mover.isWhite) == NULL) {
+			// attack counts say nothing recaptures unless the mover uncovered a sliding piece
+			return true;
+		}
+		boolean isWhiteCapturing = mover.isWhite;
+		boolean isMoverWinning = true;
+		while (true) {
+			isWhiteCapturing = !isWhiteCapturing;
+			byte attacker = findLeastValuableAttacker(to, isWhiteCapturing, removed);
+			if (attacker == NULL) {
+				break;
+			}
+			isMoverWinning = !isMoverWinning;
+			Content piece = getContent(attacker);
+			if (piece == Content.WHITE_KING || piece == Content.BLACK_KING) {
+				// king may recapture only when the square is no longer defended
+				boolean isDefended = findLeastValuableAttacker(to, !isWhiteCapturing, removed | Bitboard.of(attacker)) != NULL;
+				return isDefended != isMoverWinning;
+			}
+			balance = exchangeValue(piece) - balance;
+			// the side that just recaptured stops here if it can't lose what it won even by losing the recapturing piece
+			if (balance < (isMoverWinning ? 1 : 0)) {
+				break;
+			}
+			removed |= Bitboard.of(attacker);
+		}
+		return isMoverWinning;
+	}
+
+	private static int exchangeValue(Content piece) {
+		return EXCHANGE_VALUES[piece.asByte & SquareFormat.PIECE_TYPE_MASK];
+	}
+
+	private boolean isSquareAttackedBy(byte square0x88, boolean byWhite) {
+		short byKingFlag = byWhite ? SquareFormat.CHECK_BY_WHITE_KING : SquareFormat.CHECK_BY_BLACK_KING;
+		return isSquareCheckedBy(square0x88, byWhite) || (board0x88[square0x88] & byKingFlag) != 0;
+	}
+
+	/**
+	 * @return square of a sliding piece attacking target through the from square or NULL if there's none
+	 */
+	private byte findXrayAttacker(byte target, byte from, boolean isAttackerWhite) {
+		int deltaFile = getFile(from) - getFile(target);
+		int deltaRank = getRank(from) - getRank(target);
+		if (deltaFile != 0 && deltaRank != 0 && Math.abs(deltaFile) != Math.abs(deltaRank)) {
+			return NULL;
+		}
+		byte direction = (byte) (Integer.signum(deltaRank) * Direction.N + Integer.signum(deltaFile) * Direction.E);
+		return findSlidingAttackerAlong(target, direction, isAttackerWhite, Bitboard.of(from));
+	}
+
+	/**
+	 * Pieces on removed squares are treated as if the squares were empty
+	 * @return square of the least valuable piece attacking target or NULL if there's none
+	 */
+	private byte findLeastValuableAttacker(byte target, boolean isAttackerWhite, long removed) {
+		Content pawn = isAttackerWhite ? Content.WHITE_PAWN : Content.BLACK_PAWN;
+		byte pawnSquare = findPiece(target, isAttackerWhite ? Direction.SW : Direction.NW, pawn, removed);
+		if (pawnSquare == NULL) {
+			pawnSquare = findPiece(target, isAttackerWhite ? Direction.SE : Direction.NE, pawn, removed);
+		}
+		if (pawnSquare != NULL) {
+			return pawnSquare;
+		}
+		Content knight = isAttackerWhite ? Content.WHITE_KNIGHT : Content.BLACK_KNIGHT;
+		for (byte direction : KNIGHT_DIRECTIONS) {
+			byte knightSquare = findPiece(target, direction, knight, removed);
+			if (knightSquare != NULL) {
+				return knightSquare;
+			}
+		}
+		byte leastValuableSlider = NULL;
+		int leastValue = Integer.MAX_VALUE;
+		for (byte direction : KING_DIRECTIONS) {
+			byte slider = findSlidingAttackerAlong(target, direction, isAttackerWhite, removed);
+			if (slider != NULL && exchangeValue(getContent(slider)) < leastValue) {
+				leastValuableSlider = slider;
+				leastValue = exchangeValue(getContent(slider));
+			}
+		}
+		if (leastValuableSlider != NULL) {
+			return leastValuableSlider;
+		}
+		Content king = isAttackerWhite ? Content.WHITE_KING : Content.BLACK_KING;
+		for (byte direction : KING_DIRECTIONS) {
+			byte kingSquare = findPiece(target, direction, king, removed);
+			if (kingSquare != NULL) {
+				return kingSquare;
+			}
+		}
+		return NULL;
+	}
+
+	private byte findPiece(byte target, byte direction, Content piece, long removed) {
+		byte square = Direction.move(target, direction);
+		if (inBounds(square) && getContent(square) == piece && (removed & Bitboard.of(square)) == 0) {
+			return square;
+		}
+		return NULL;
+	}
+
+	/**
+	 * @return square of the first piece from target in the direction if it's a sliding piece of the attacker's color
+	 * moving along that direction, NULL otherwise
+	 */
+	private byte findSlidingAttackerAlong(byte target, byte direction, boolean isAttackerWhite, long removed) {
+		byte square = Direction.move(target, direction);
+		while (inBounds(square)) {
+			Content piece = getContent(square);
+			if (piece != Content.EMPTY && (removed & Bitboard.of(square)) == 0) {
+				return piece.isWhite == isAttackerWhite && isSlidingAlong(piece, direction) ? square : NULL;
+			}
+			square = Direction.move(square, direction);
+		}
+		return NULL;
+	}
+
 	/**
 	 * 	 Generates pseudo-legal moves. Takes into consideration absolute pins. Moves generated by this method are legal
 	 * 	 * 	 provided that the king of the side taking turn was not in check.
-	 * @param ouputMoves - leave this null to skip actual generation and just count the moves
 	 * @param mode
-	 * @return number of output moves
 	 */
-	private int generatePseudoLegalMoves(List<State> ouputMoves, GeneratorMode mode) {
-		int movesCount = 0;
-		byte[] piecesOfOneType = test(WHITE_TURN) ? pieces.whitePawns : pieces.blackPawns;
-		byte piecesCount = test(WHITE_TURN) ? pieces.whitePawnsCount : pieces.blackPawnsCount;
-		for (byte i = 0; i < piecesCount; i++) {
-			movesCount += generatePseudoLegalPawnCaptures(piecesOfOneType[i], ouputMoves);
-		}
-		for (byte i = 0; i < piecesCount; i++) {
-			movesCount += generatePseudoLegalPawnPushes(piecesOfOneType[i], ouputMoves, mode);
-		}
-		piecesOfOneType = test(WHITE_TURN) ? pieces.whiteKnights : pieces.blackKnights;
-		piecesCount = test(WHITE_TURN) ? pieces.whiteKnightsCount : pieces.blackKnightsCount;
-		for (byte i = 0; i < piecesCount; i++) {
-				movesCount += generatePseudoLegalKnightMoves(piecesOfOneType[i], ouputMoves, mode);
-		}
-		piecesOfOneType = test(WHITE_TURN) ? pieces.whiteBishops : pieces.blackBishops;
-		piecesCount = test(WHITE_TURN) ? pieces.whiteBishopsCount : pieces.blackBishopsCount;
-		for (byte i = 0; i < piecesCount; i++) {
-			movesCount += generatePseudoLegalBishopMoves(piecesOfOneType[i], ouputMoves, mode);
-		}
-		piecesOfOneType = test(WHITE_TURN) ? pieces.whiteRooks : pieces.blackRooks;
-		piecesCount = test(WHITE_TURN) ? pieces.whiteRooksCount : pieces.blackRooksCount;
-		for (byte i = 0; i < piecesCount; i++) {
-			movesCount += generatePseudoLegalRookMoves(piecesOfOneType[i], ouputMoves, mode);
-		}
-		piecesOfOneType = test(WHITE_TURN) ? pieces.whiteQueens : pieces.blackQueens;
-		piecesCount = test(WHITE_TURN) ? pieces.whiteQueensCount : pieces.blackQueensCount;
-		for (byte i = 0; i < piecesCount; i++) {
-			movesCount += generatePseudoLegalQueenMoves(piecesOfOneType[i], ouputMoves, mode);
-		}
-		movesCount += generateLegalKingMoves(test(WHITE_TURN) ? pieces.getWhiteKing() : pieces.getBlackKing(),
-				ouputMoves, mode);
-		return movesCount;
+	private void generatePseudoLegalMoves(GeneratorMode mode) {
+		boolean isWhiteTurn = test(WHITE_TURN);
+		Content piece = isWhiteTurn ? Content.WHITE_PAWN : Content.BLACK_PAWN;
+		int piecesCount = pieces.getCount(piece);
+		if (GeneratorMode.QUIET_MOVES != mode) {
+			for (int i = 0; i < piecesCount; i++) {
+				generatePseudoLegalPawnCaptures(pieces.getSquare(piece, i));
+			}
+		}
+		for (int i = 0; i < piecesCount; i++) {
+			generatePseudoLegalPawnPushes(pieces.getSquare(piece, i), mode);
+		}
+		piece = isWhiteTurn ? Content.WHITE_KNIGHT : Content.BLACK_KNIGHT;
+		piecesCount = pieces.getCount(piece);
+		for (int i = 0; i < piecesCount; i++) {
+			generatePseudoLegalKnightMoves(pieces.getSquare(piece, i), mode);
+		}
+		piece = isWhiteTurn ? Content.WHITE_BISHOP : Content.BLACK_BISHOP;
+		piecesCount = pieces.getCount(piece);
+		for (int i = 0; i < piecesCount; i++) {
+			generatePseudoLegalBishopMoves(pieces.getSquare(piece, i), mode);
+		}
+		piece = isWhiteTurn ? Content.WHITE_ROOK : Content.BLACK_ROOK;
+		piecesCount = pieces.getCount(piece);
+		for (int i = 0; i < piecesCount; i++) {
+			generatePseudoLegalRookMoves(pieces.getSquare(piece, i), mode);
+		}
+		piece = isWhiteTurn ? Content.WHITE_QUEEN : Content.BLACK_QUEEN;
+		piecesCount = pieces.getCount(piece);
+		for (int i = 0; i < piecesCount; i++) {
+			generatePseudoLegalQueenMoves(pieces.getSquare(piece, i), mode);
+		}
+		generateLegalKingMoves(test(WHITE_TURN) ? pieces.getWhiteKing() : pieces.getBlackKing(), mode);
 	}
 
-	private int generateLegalKingMoves(byte from, List<State> outputMoves, GeneratorMode mode) {
-		int movesCount = 0;
+	private void generatePseudoLegalMovesOf(byte from) {
+		switch (getContent(from)) {
+			case WHITE_PAWN:
+			case BLACK_PAWN:
+				generatePseudoLegalPawnCaptures(from);
+				generatePseudoLegalPawnPushes(from, GeneratorMode.ALL_MOVES);
+				break;
+			case WHITE_KNIGHT:
+			case BLACK_KNIGHT:
+				generatePseudoLegalKnightMoves(from, GeneratorMode.ALL_MOVES);
+				break;
+			case WHITE_BISHOP:
+			case BLACK_BISHOP:
+				generatePseudoLegalBishopMoves(from, GeneratorMode.ALL_MOVES);
+				break;
+			case WHITE_ROOK:
+			case BLACK_ROOK:
+				generatePseudoLegalRookMoves(from, GeneratorMode.ALL_MOVES);
+				break;
+			case WHITE_QUEEN:
+			case BLACK_QUEEN:
+				generatePseudoLegalQueenMoves(from, GeneratorMode.ALL_MOVES);
+				break;
+			case WHITE_KING:
+			case BLACK_KING:
+				generateLegalKingMoves(from, GeneratorMode.ALL_MOVES);
+				break;
+		}
+	}
+
+	private void generateLegalKingMoves(byte from, GeneratorMode mode) {
 		boolean isWhiteTurn = test(WHITE_TURN);
 		byte to = Direction.move(from, Direction.NE);
 		if (inBounds(to) && !isSameColorPieceOn(to) && canKingWalkOnSquare(to, isWhiteTurn)
-				&& (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+				&& isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.E);
 		if (inBounds(to) && !isSameColorPieceOn(to) && canKingWalkOnSquare(to, isWhiteTurn)
-				&& (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+				&& isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.SE);
 		if (inBounds(to) && !isSameColorPieceOn(to) && canKingWalkOnSquare(to, isWhiteTurn)
-				&& (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+				&& isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.S);
 		if (inBounds(to) && !isSameColorPieceOn(to) && canKingWalkOnSquare(to, isWhiteTurn)
-				&& (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+				&& isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.SW);
 		if (inBounds(to) && !isSameColorPieceOn(to) && canKingWalkOnSquare(to, isWhiteTurn)
-				&& (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+				&& isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.W);
 		if (inBounds(to) && !isSameColorPieceOn(to) && canKingWalkOnSquare(to, isWhiteTurn)
-				&& (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+				&& isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.NW);
 		if (inBounds(to) && !isSameColorPieceOn(to) && canKingWalkOnSquare(to, isWhiteTurn)
-				&& (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+				&& isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.N);
 		if (inBounds(to) && !isSameColorPieceOn(to) && canKingWalkOnSquare(to, isWhiteTurn)
-				&& (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+				&& isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		if (GeneratorMode.TACTICAL_MOVES == mode) {
-			return movesCount;
+			return;
 		}
 
 		int qsCastlePossible = isWhiteTurn ? WHITE_QS_CASTLE_POSSIBLE : BLACK_QS_CASTLE_POSSIBLE;
@@ -965,21 +1583,12 @@ public class State {
 			byte kingKsTo = isWhiteTurn ? Square0x88.G1 : Square0x88.G8;
 
 			if (test(qsCastlePossible) && squaresOkForQsCastling(isWhiteTurn)) {
-				if (outputMoves != null) {
-					outputMoves.add(fromLegalQueensideCastling(from, kingQsTo));
-				} else {
-					movesCount++;
-				}
+				addMove(Move.castling(from, kingQsTo));
 			}
 			if (test(ksCastlePossible) && squaresOkForKsCastling(isWhiteTurn)) {
-				if (outputMoves != null) {
-					outputMoves.add(fromLegalKingsideCastling(from, kingKsTo));
-				} else {
-					movesCount++;
-				}
+				addMove(Move.castling(from, kingKsTo));
 			}
 		}
-		return movesCount;
 	}
 
 	private boolean squaresOkForQsCastling(boolean isWhiteKingCastling) {
@@ -1002,199 +1611,452 @@ public class State {
 		return true;
 	}
 
-	private int generatePseudoLegalQueenMoves(byte from, List<State> outputMoves, GeneratorMode mode) {
-		int movesCount = 0;
-		movesCount += generatePseudoLegalRookMoves(from, outputMoves, mode);
-		movesCount += generatePseudoLegalBishopMoves(from, outputMoves, mode);
-		return movesCount;
+	private void generatePseudoLegalQueenMoves(byte from, GeneratorMode mode) {
+		if (bitboardMode) {
+			generateSlidingPieceMoves(from, Attacks.queen(Bitboard.fromSquare0x88(from), whiteOccupancy | blackOccupancy), mode);
+			return;
+		}
+		generatePseudoLegalRookMoves(from, mode);
+		generatePseudoLegalBishopMoves(from, mode);
 	}
 
-	private int generatePseudoLegalRookMoves(byte from, List<State> outputMoves, GeneratorMode mode) {
-		int movesCount = 0;
-		movesCount += generateSlidingPieceMoves(from, outputMoves, Direction.N, mode);
-		movesCount += generateSlidingPieceMoves(from, outputMoves, Direction.E, mode);
-		movesCount += generateSlidingPieceMoves(from, outputMoves, Direction.S, mode);
-		movesCount += generateSlidingPieceMoves(from, outputMoves, Direction.W, mode);
-		return movesCount;
+	private void generatePseudoLegalRookMoves(byte from, GeneratorMode mode) {
+		if (bitboardMode) {
+			generateSlidingPieceMoves(from, Attacks.rook(Bitboard.fromSquare0x88(from), whiteOccupancy | blackOccupancy), mode);
+			return;
+		}
+		generateSlidingPieceMoves(from, Direction.N, mode);
+		generateSlidingPieceMoves(from, Direction.E, mode);
+		generateSlidingPieceMoves(from, Direction.S, mode);
+		generateSlidingPieceMoves(from, Direction.W, mode);
 	}
 
-	private int generatePseudoLegalBishopMoves(byte from, List<State> outputMoves, GeneratorMode mode) {
-		int movesCount = 0;
-		movesCount += generateSlidingPieceMoves(from, outputMoves, Direction.NE, mode);
-		movesCount += generateSlidingPieceMoves(from, outputMoves, Direction.SE, mode);
-		movesCount += generateSlidingPieceMoves(from, outputMoves, Direction.SW, mode);
-		movesCount += generateSlidingPieceMoves(from, outputMoves, Direction.NW, mode);
-		return movesCount;
+	private void generatePseudoLegalBishopMoves(byte from, GeneratorMode mode) {
+		if (bitboardMode) {
+			generateSlidingPieceMoves(from, Attacks.bishop(Bitboard.fromSquare0x88(from), whiteOccupancy | blackOccupancy), mode);
+			return;
+		}
+		generateSlidingPieceMoves(from, Direction.NE, mode);
+		generateSlidingPieceMoves(from, Direction.SE, mode);
+		generateSlidingPieceMoves(from, Direction.SW, mode);
+		generateSlidingPieceMoves(from, Direction.NW, mode);
 	}
 
-	private int generateSlidingPieceMoves(byte from0x88, List<State> outputMoves, byte direction, GeneratorMode mode) {
-		int movesCount = 0;
-		if (pieceIsFreeToMove(Square0x88.to8x8Square(from0x88), Pin.fromDirection(direction))) {
+	private void generateSlidingPieceMoves(byte from0x88, byte direction, GeneratorMode mode) {
+		if (pieceIsFreeToMove(from0x88, Pin.fromDirection(direction))) {
 			byte to = Direction.move(from0x88, direction);
 			while (inBounds(to)) {
 				if (isSameColorPieceOn(to)) {
 					break;
 				}
-				if (GeneratorMode.TACTICAL_MOVES != mode) {
-					movesCount = createOrCountMove(from0x88, to, outputMoves, movesCount);
-				}
 				if (isOppositeColorPieceOn(to)) {
-					if (GeneratorMode.TACTICAL_MOVES == mode) {
-						movesCount = createOrCountMove(from0x88, to, outputMoves, movesCount);
+					if (GeneratorMode.QUIET_MOVES != mode) {
+						addMove(Move.of(from0x88, to));
 					}
 					break;
 				}
+				if (GeneratorMode.TACTICAL_MOVES != mode) {
+					addMove(Move.of(from0x88, to));
+				}
 				to = Direction.move(to, direction);
 			}
 		}
-		return movesCount;
 	}
 
-	private int generatePseudoLegalPawnPushes(byte from0x88, List<State> outputMoves, GeneratorMode mode) {
-		int movesCount = 0;
+	/**
+	 * @param attacks - squares attacked by the sliding piece on from0x88
+	 */
+	private void generateSlidingPieceMoves(byte from0x88, long attacks, GeneratorMode mode) {
+		boolean isWhiteTurn = test(WHITE_TURN);
+		long targets = attacks & ~(isWhiteTurn ? whiteOccupancy : blackOccupancy);
+		if (GeneratorMode.TACTICAL_MOVES == mode) {
+			targets &= isWhiteTurn ? blackOccupancy : whiteOccupancy;
+		} else if (GeneratorMode.QUIET_MOVES == mode) {
+			targets &= ~(whiteOccupancy | blackOccupancy);
+		}
+		if ((getPinnedPieces(isWhiteTurn) & Bitboard.of(from0x88)) != 0) {
+			byte king = isWhiteTurn ? pieces.getWhiteKing() : pieces.getBlackKing();
+			targets &= Attacks.line(Bitboard.fromSquare0x88(king), Bitboard.fromSquare0x88(from0x88));
+		}
+		while (targets != Bitboard.EMPTY) {
+			addMove(Move.of(from0x88, Bitboard.toSquare0x88(Bitboard.first(targets))));
+			targets = Bitboard.withoutFirst(targets);
+		}
+	}
 
+	private void generatePseudoLegalPawnPushes(byte from0x88, GeneratorMode mode) {
 		byte pawnDisplacement = test(WHITE_TURN) ? Direction.N : Direction.S;
 		int pawnDoubleDisplacement = test(WHITE_TURN) ? 2 * Direction.N : 2 * Direction.S;
 
 		byte to0x88 = Direction.move(from0x88, pawnDisplacement);
 		// head-on move
-		if (getContent(to0x88) == Content.EMPTY && pieceIsFreeToMove(Square0x88.to8x8Square(from0x88), Pin.FILE)) {
+		if (getContent(to0x88) == Content.EMPTY && pieceIsFreeToMove(from0x88, Pin.FILE)) {
 			if (isPromotingSquare(to0x88)) {
-				movesCount += generatePromotionMoves(from0x88, to0x88, outputMoves);
+				if (GeneratorMode.QUIET_MOVES != mode) {
+					generatePromotionMoves(from0x88, to0x88);
+				}
 			} else if (GeneratorMode.TACTICAL_MOVES != mode) {
-				movesCount = createOrCountMove(from0x88, to0x88, outputMoves, movesCount);
+				addMove(Move.of(from0x88, to0x88));
 				to0x88 = Direction.move(from0x88, (byte) pawnDoubleDisplacement);
 				if (isInitialSquareOfPawn(from0x88) && getContent(to0x88) == Content.EMPTY) {
-					if (outputMoves != null) {
-						outputMoves.add(fromPseudoLegalPawnDoublePush(from0x88, to0x88, (byte)(from0x88 + pawnDisplacement)));
-					} else {
-						movesCount++;
-					}
+					addMove(Move.doublePush(from0x88, to0x88));
 				}
 			}
 		}
-		return movesCount;
 	}
 
 	/**
 	 * Captures are generated before pushes
 	 */
-	private int generatePseudoLegalPawnCaptures(byte from0x88, List<State> outputMoves) {
-		int movesCount = 0;
+	private void generatePseudoLegalPawnCaptures(byte from0x88) {
 		byte pawnQsCapture = test(WHITE_TURN) ? Direction.NW : Direction.SW;
 		byte pawnKsCapture = test(WHITE_TURN) ? Direction.NE : Direction.SE;
 
 		// move with capture to the queen-side
 		byte to0x88 = Direction.move(from0x88, pawnQsCapture);
-
 		if (Square0x88.inBounds(to0x88) && (isOppositeColorPieceOn(to0x88) || to0x88 == enPassantSquare)
-				&& pieceIsFreeToMove(Square0x88.to8x8Square(from0x88), Pin.fromDirection(pawnQsCapture))) {
-			if (isPromotingSquare(to0x88)) {
-				movesCount += generatePromotionMoves(from0x88, to0x88, outputMoves);
-			} else {
-				movesCount = createOrCountMove(from0x88, to0x88, outputMoves, movesCount);
-			}
+				&& pieceIsFreeToMove(from0x88, Pin.fromDirection(pawnQsCapture))) {
+			generatePawnCapture(from0x88, to0x88);
 		}
 		// move with capture to the king side
 		to0x88 = Direction.move(from0x88, pawnKsCapture);
 		if (Square0x88.inBounds(to0x88) && (isOppositeColorPieceOn(to0x88) || to0x88 == enPassantSquare)
-				&& pieceIsFreeToMove(Square0x88.to8x8Square(from0x88), Pin.fromDirection(pawnKsCapture))) {
-			if (isPromotingSquare(to0x88)) {
-				movesCount += generatePromotionMoves(from0x88, to0x88, outputMoves);
-			} else {
-				movesCount = createOrCountMove(from0x88, to0x88, outputMoves, movesCount);
-			}
+				&& pieceIsFreeToMove(from0x88, Pin.fromDirection(pawnKsCapture))) {
+			generatePawnCapture(from0x88, to0x88);
 		}
-		return movesCount;
 	}
 
-	private int generatePromotionMoves(byte from, byte to, List<State> outputMoves) {
-		if (outputMoves == null) {
-			return 4;
+	private void generatePawnCapture(byte from0x88, byte to0x88) {
+		if (isPromotingSquare(to0x88)) {
+			generatePromotionMoves(from0x88, to0x88);
+		} else if (to0x88 == enPassantSquare) {
+			if (isEnPassantLegal(Move.enPassant(from0x88, to0x88))) {
+				addMove(Move.enPassant(from0x88, to0x88));
+			}
+		} else {
+			addMove(Move.of(from0x88, to0x88));
 		}
-		outputMoves.add(fromPseudoLegalMoveWithPromotion(from, to, test(WHITE_TURN) ? Content.WHITE_QUEEN : Content.BLACK_QUEEN));
-		outputMoves.add(fromPseudoLegalMoveWithPromotion(from, to, test(WHITE_TURN) ? Content.WHITE_ROOK : Content.BLACK_ROOK));
-		outputMoves.add(fromPseudoLegalMoveWithPromotion(from, to, test(WHITE_TURN) ? Content.WHITE_BISHOP : Content.BLACK_BISHOP));
-		outputMoves.add(fromPseudoLegalMoveWithPromotion(from, to, test(WHITE_TURN) ? Content.WHITE_KNIGHT : Content.BLACK_KNIGHT));
-		return 4;
 	}
 
-	private int generatePseudoLegalKnightMoves(byte from, List<State> outputMoves, GeneratorMode mode) {
-		if (!pieceIsFreeToMove(Square0x88.to8x8Square(from), null)) {
-			return 0;
+	private void generatePromotionMoves(byte from, byte to) {
+		addMove(Move.promotion(from, to, test(WHITE_TURN) ? Content.WHITE_QUEEN : Content.BLACK_QUEEN));
+		addMove(Move.promotion(from, to, test(WHITE_TURN) ? Content.WHITE_ROOK : Content.BLACK_ROOK));
+		addMove(Move.promotion(from, to, test(WHITE_TURN) ? Content.WHITE_BISHOP : Content.BLACK_BISHOP));
+		addMove(Move.promotion(from, to, test(WHITE_TURN) ? Content.WHITE_KNIGHT : Content.BLACK_KNIGHT));
+	}
+
+	private void generatePseudoLegalKnightMoves(byte from, GeneratorMode mode) {
+		if (!pieceIsFreeToMove(from, null)) {
+			return;
 		}
-		int movesCount = 0;
 		byte to = Direction.move(from, Direction.NNE);
-
-		if (inBounds(to) && !isSameColorPieceOn(to) && (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+		if (inBounds(to) && !isSameColorPieceOn(to) && isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.NEE);
-		if (inBounds(to) && !isSameColorPieceOn(to) && (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+		if (inBounds(to) && !isSameColorPieceOn(to) && isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.SEE);
-		if (inBounds(to) && !isSameColorPieceOn(to) && (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+		if (inBounds(to) && !isSameColorPieceOn(to) && isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.SSE);
-		if (inBounds(to) && !isSameColorPieceOn(to) && (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+		if (inBounds(to) && !isSameColorPieceOn(to) && isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.SSW);
-		if (inBounds(to) && !isSameColorPieceOn(to) && (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+		if (inBounds(to) && !isSameColorPieceOn(to) && isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.SWW);
-		if (inBounds(to) && !isSameColorPieceOn(to) && (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+		if (inBounds(to) && !isSameColorPieceOn(to) && isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.NWW);
-		if (inBounds(to) && !isSameColorPieceOn(to) && (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+		if (inBounds(to) && !isSameColorPieceOn(to) && isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
 		to = Direction.move(from, Direction.NNW);
-		if (inBounds(to) && !isSameColorPieceOn(to) && (GeneratorMode.TACTICAL_MOVES != mode || isOppositeColorPieceOn(to))) {
-			movesCount = createOrCountMove(from, to, outputMoves, movesCount);
+		if (inBounds(to) && !isSameColorPieceOn(to) && isTargetInMode(to, mode)) {
+			addMove(Move.of(from, to));
 		}
-		return movesCount;
 	}
 
-	private int createOrCountMove(byte from, byte to, List<State> outputMoves, int movesCount) {
+	/**
+	 * Tells if move of a piece other than pawn to given square is generated in this mode
+	 */
+	private boolean isTargetInMode(byte to0x88, GeneratorMode mode) {
+		return GeneratorMode.ALL_MOVES == mode || (GeneratorMode.TACTICAL_MOVES == mode) == isOppositeColorPieceOn(to0x88);
+	}
+
+	/**
+	 * Puts move in outputMoves or just counts it when outputMoves is null
+	 */
+	private void addMove(int move) {
 		if (outputMoves != null) {
-			outputMoves.add(fromPseudoLegalMove(from, to));
-			return 0;
+			outputMoves[outputMovesCount] = move;
 		}
-		return movesCount + 1;
+		outputMovesCount++;
 	}
 
 	/**
-	 * Returns true if piece at pieceLocation8x8 can move along the movementDirection line (is not absolutely pinned).
-	 * @param movementDirection - leave this null in case of knight at pieceLocation8x8
+	 * Returns true if piece at square0x88 can move along the movementDirection line (is not absolutely pinned).
+	 * @param movementDirection - leave this null in case of knight at square0x88
 	 */
-	private boolean pieceIsFreeToMove(int pieceLocation8x8, Pin movementDirection) {
-		Pin pin = pinnedPieces[pieceLocation8x8];
-		return pin == null || pin == movementDirection;
+	private boolean pieceIsFreeToMove(byte square0x88, Pin movementDirection) {
+		if ((getPinnedPieces(test(WHITE_TURN)) & Bitboard.of(square0x88)) == 0) {
+			return true;
+		}
+		return movementDirection != null && movementDirection == getPin(square0x88);
 	}
 
-	private int generateLegalMovesWhenKingInCheck(List<State> outputMoves, byte checkedKing, GeneratorMode mode) {
-		int movesCount = 0;
-		if (getChecksCount(checkedKing, !test(WHITE_TURN)) < 2) {
-			List<State> pseudoLegalMoves = new ArrayList<>(Config.MOVES_LIST_CAPACITY);
-			generatePseudoLegalMoves(pseudoLegalMoves, mode);
-			for (State pseudoLegalState : pseudoLegalMoves) {
-				if (pseudoLegalState.isLegal()) {
-					if (outputMoves != null) {
-						outputMoves.add(pseudoLegalState);
-					} else {
-						movesCount++;
+	/**
+	 * Generates only moves that can resolve the check: king moves, captures of the checking piece and interpositions
+	 * on the checking ray. Pinned pieces can't do either so they are skipped.
+	 */
+	private void generateEvasions(byte checkedKing, GeneratorMode mode) {
+		boolean isWhiteTurn = test(WHITE_TURN);
+		generateLegalKingMoves(checkedKing, mode);
+		if (getChecksCount(checkedKing, !isWhiteTurn) >= 2) {
+			return;
+		}
+		int king = Bitboard.fromSquare0x88(checkedKing);
+		long checkers = getCheckers(king, isWhiteTurn);
+		assert Long.bitCount(checkers) == 1 : "Checkers " + Long.bitCount(checkers) + " in single check\n" + this;
+		int checker = Bitboard.first(checkers);
+		long free = ~getPinnedPieces(isWhiteTurn);
+		long targets = checkers | Attacks.between(king, checker);
+		for (; targets != Bitboard.EMPTY; targets = Bitboard.withoutFirst(targets)) {
+			generateMovesTo(Bitboard.first(targets), free, mode);
+		}
+		// pawn that has just made a double push checks the king and can be taken en passant
+		if (enPassantSquare != NULL && GeneratorMode.QUIET_MOVES != mode
+				&& Bitboard.toSquare0x88(checker) == Direction.move(enPassantSquare, isWhiteTurn ? Direction.S : Direction.N)) {
+			long pawns = free & bitboards[isWhiteTurn ? Content.WHITE_PAWN.asByte : Content.BLACK_PAWN.asByte];
+			long capturers = Attacks.pawn(!isWhiteTurn, Bitboard.fromSquare0x88(enPassantSquare)) & pawns;
+			for (; capturers != Bitboard.EMPTY; capturers = Bitboard.withoutFirst(capturers)) {
+				generatePawnCapture(Bitboard.toSquare0x88(Bitboard.first(capturers)), enPassantSquare);
+			}
+		}
+	}
+
+	/**
+	 * Generates moves of not pinned pieces other than king to the target square
+	 */
+	private void generateMovesTo(int target, long free, GeneratorMode mode) {
+		boolean isWhiteTurn = test(WHITE_TURN);
+		byte to0x88 = Bitboard.toSquare0x88(target);
+		long occupied = whiteOccupancy | blackOccupancy;
+		if (isTargetInMode(to0x88, mode)) {
+			long queens = bitboards[isWhiteTurn ? Content.WHITE_QUEEN.asByte : Content.BLACK_QUEEN.asByte];
+			long knights = bitboards[isWhiteTurn ? Content.WHITE_KNIGHT.asByte : Content.BLACK_KNIGHT.asByte];
+			long bishoplikes = queens | bitboards[isWhiteTurn ? Content.WHITE_BISHOP.asByte : Content.BLACK_BISHOP.asByte];
+			long rooklikes = queens | bitboards[isWhiteTurn ? Content.WHITE_ROOK.asByte : Content.BLACK_ROOK.asByte];
+			long movers = free & ((Attacks.knight(target) & knights) | (Attacks.bishop(target, occupied) & bishoplikes)
+					| (Attacks.rook(target, occupied) & rooklikes));
+			for (; movers != Bitboard.EMPTY; movers = Bitboard.withoutFirst(movers)) {
+				addMove(Move.of(Bitboard.toSquare0x88(Bitboard.first(movers)), to0x88));
+			}
+		}
+
+		long pawns = free & bitboards[isWhiteTurn ? Content.WHITE_PAWN.asByte : Content.BLACK_PAWN.asByte];
+		if (isOppositeColorPieceOn(to0x88) || to0x88 == enPassantSquare) {
+			if (GeneratorMode.QUIET_MOVES == mode) {
+				return;
+			}
+			for (long capturers = Attacks.pawn(!isWhiteTurn, target) & pawns; capturers != Bitboard.EMPTY;
+				 capturers = Bitboard.withoutFirst(capturers)) {
+				generatePawnCapture(Bitboard.toSquare0x88(Bitboard.first(capturers)), to0x88);
+			}
+			return;
+		}
+		int backward = isWhiteTurn ? -8 : 8;
+		if (Bitboard.getRank(target) == (isWhiteTurn ? Rank._1 : Rank._8)) {
+			return;
+		}
+		if ((pawns & 1L << (target + backward)) != 0) {
+			byte from0x88 = Bitboard.toSquare0x88(target + backward);
+			if (isPromotingSquare(to0x88)) {
+				if (GeneratorMode.QUIET_MOVES != mode) {
+					generatePromotionMoves(from0x88, to0x88);
+				}
+			} else if (GeneratorMode.TACTICAL_MOVES != mode) {
+				addMove(Move.of(from0x88, to0x88));
+			}
+		} else if (GeneratorMode.TACTICAL_MOVES != mode && Bitboard.getRank(target) == (isWhiteTurn ? Rank._4 : Rank._5)
+				&& (pawns & 1L << (target + 2 * backward)) != 0 && (occupied & 1L << (target + backward)) == 0) {
+			addMove(Move.doublePush(Bitboard.toSquare0x88(target + 2 * backward), to0x88));
+		}
+	}
+
+	/**
+	 * Generates quiet moves that give check without generating all moves. Direct checks are found backwards from the
+	 * enemy king: empty squares a knight jump away and on its rays are looked up, then own pieces able to reach them.
+	 * Discovered checks are quiet moves off the line of the only own piece between own sliding piece and the enemy king.
+	 * Castling is not generated.
+	 */
+	private void generateQuietChecks() {
+		boolean isWhiteTurn = test(WHITE_TURN);
+		int enemyKing = Bitboard.fromSquare0x88(isWhiteTurn ? pieces.getBlackKing() : pieces.getWhiteKing());
+		long occupied = whiteOccupancy | blackOccupancy;
+		long queens = bitboards[isWhiteTurn ? Content.WHITE_QUEEN.asByte : Content.BLACK_QUEEN.asByte];
+		long knights = bitboards[isWhiteTurn ? Content.WHITE_KNIGHT.asByte : Content.BLACK_KNIGHT.asByte];
+		long bishops = bitboards[isWhiteTurn ? Content.WHITE_BISHOP.asByte : Content.BLACK_BISHOP.asByte];
+		long rooks = bitboards[isWhiteTurn ? Content.WHITE_ROOK.asByte : Content.BLACK_ROOK.asByte];
+		long pawns = bitboards[isWhiteTurn ? Content.WHITE_PAWN.asByte : Content.BLACK_PAWN.asByte];
+
+		long discoverers = getDiscoveredCheckers(enemyKing, isWhiteTurn);
+		for (long blockers = discoverers; blockers != Bitboard.EMPTY; blockers = Bitboard.withoutFirst(blockers)) {
+			generateDiscoveredChecks(Bitboard.toSquare0x88(Bitboard.first(blockers)), enemyKing);
+		}
+		for (long targets = Attacks.knight(enemyKing) & ~occupied; targets != Bitboard.EMPTY;
+			 targets = Bitboard.withoutFirst(targets)) {
+			int target = Bitboard.first(targets);
+			generateDirectChecks(Attacks.knight(target) & knights, target, enemyKing, discoverers);
+		}
+		for (long targets = Attacks.bishop(enemyKing, occupied) & ~occupied; targets != Bitboard.EMPTY;
+			 targets = Bitboard.withoutFirst(targets)) {
+			int target = Bitboard.first(targets);
+			// queen may come from any direction
+			long movers = (Attacks.bishop(target, occupied) & bishops) | (Attacks.queen(target, occupied) & queens);
+			generateDirectChecks(movers, target, enemyKing, discoverers);
+		}
+		for (long targets = Attacks.rook(enemyKing, occupied) & ~occupied; targets != Bitboard.EMPTY;
+			 targets = Bitboard.withoutFirst(targets)) {
+			int target = Bitboard.first(targets);
+			long movers = (Attacks.rook(target, occupied) & rooks) | (Attacks.queen(target, occupied) & queens);
+			generateDirectChecks(movers, target, enemyKing, discoverers);
+		}
+		int backward = isWhiteTurn ? -8 : 8;
+		for (long targets = Attacks.pawn(!isWhiteTurn, enemyKing) & ~occupied; targets != Bitboard.EMPTY;
+			 targets = Bitboard.withoutFirst(targets)) {
+			int target = Bitboard.first(targets);
+			if (isPromotingSquare(Bitboard.toSquare0x88(target))) {
+				continue;
+			}
+			if ((pawns & 1L << (target + backward)) != 0) {
+				generateDirectChecks(1L << (target + backward), target, enemyKing, discoverers);
+			} else if (Bitboard.getRank(target) == (isWhiteTurn ? Rank._4 : Rank._5)
+					&& (pawns & 1L << (target + 2 * backward)) != 0 && (occupied & 1L << (target + backward)) == 0) {
+				int from = target + 2 * backward;
+				if (isDirectCheckGenerated(from, target, enemyKing, discoverers)) {
+					addMove(Move.doublePush(Bitboard.toSquare0x88(from), Bitboard.toSquare0x88(target)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param movers - own pieces that can move to the target square and check the enemy king from there
+	 */
+	private void generateDirectChecks(long movers, int target, int enemyKing, long discoverers) {
+		for (; movers != Bitboard.EMPTY; movers = Bitboard.withoutFirst(movers)) {
+			int mover = Bitboard.first(movers);
+			if (isDirectCheckGenerated(mover, target, enemyKing, discoverers)) {
+				addMove(Move.of(Bitboard.toSquare0x88(mover), Bitboard.toSquare0x88(target)));
+			}
+		}
+	}
+
+	/**
+	 * Moves of pinned pieces off the pin line are illegal. Moves of discovering pieces off the discovery line are
+	 * generated as discovered checks.
+	 */
+	private boolean isDirectCheckGenerated(int from, int to, int enemyKing, long discoverers) {
+		boolean isWhiteTurn = test(WHITE_TURN);
+		if ((discoverers & 1L << from) != 0 && (Attacks.line(enemyKing, from) & 1L << to) == 0) {
+			return false;
+		}
+		if ((getPinnedPieces(isWhiteTurn) & 1L << from) == 0) {
+			return true;
+		}
+		int king = Bitboard.fromSquare0x88(isWhiteTurn ? pieces.getWhiteKing() : pieces.getBlackKing());
+		return (Attacks.line(king, from) & 1L << to) != 0;
+	}
+
+	/**
+	 * Sliders seen from the enemy king through pieces of own color are candidates. A piece discovers check when it's
+	 * the only one between such slider and the enemy king. Same as pinned pieces detection but with colors swapped.
+	 */
+	private long getDiscoveredCheckers(int enemyKing, boolean isWhite) {
+		long own = isWhite ? whiteOccupancy : blackOccupancy;
+		long enemy = isWhite ? blackOccupancy : whiteOccupancy;
+		long queens = bitboards[isWhite ? Content.WHITE_QUEEN.asByte : Content.BLACK_QUEEN.asByte];
+		long rooks = bitboards[isWhite ? Content.WHITE_ROOK.asByte : Content.BLACK_ROOK.asByte];
+		long bishops = bitboards[isWhite ? Content.WHITE_BISHOP.asByte : Content.BLACK_BISHOP.asByte];
+
+		long sliders = (Attacks.rook(enemyKing, enemy) & (rooks | queens))
+				| (Attacks.bishop(enemyKing, enemy) & (bishops | queens));
+		long discoverers = Bitboard.EMPTY;
+		for (; sliders != Bitboard.EMPTY; sliders = Bitboard.withoutFirst(sliders)) {
+			long piecesBetween = Attacks.between(enemyKing, Bitboard.first(sliders)) & own;
+			if (piecesBetween != Bitboard.EMPTY && !Bitboard.hasMoreThanOne(piecesBetween)) {
+				discoverers |= piecesBetween;
+			}
+		}
+		return discoverers;
+	}
+
+	/**
+	 * Generates quiet moves of the piece that leave the line between the enemy king and own sliding piece
+	 */
+	private void generateDiscoveredChecks(byte from, int enemyKing) {
+		byte enemyKing0x88 = Bitboard.toSquare0x88(enemyKing);
+		Pin line = Pin.fromDeltas(Integer.signum(getFile(from) - getFile(enemyKing0x88)),
+				Integer.signum(getRank(from) - getRank(enemyKing0x88)));
+		byte[] directions;
+		switch (getContent(from)) {
+			case WHITE_PAWN:
+			case BLACK_PAWN:
+				if (line != Pin.FILE) {
+					generatePseudoLegalPawnPushes(from, GeneratorMode.QUIET_MOVES);
+				}
+				return;
+			case WHITE_KNIGHT:
+			case BLACK_KNIGHT:
+				generatePseudoLegalKnightMoves(from, GeneratorMode.QUIET_MOVES);
+				return;
+			case WHITE_KING:
+			case BLACK_KING:
+				for (byte direction : KING_DIRECTIONS) {
+					byte to = Direction.move(from, direction);
+					if (Pin.fromDirection(direction) != line && inBounds(to) && getContent(to) == Content.EMPTY
+							&& canKingWalkOnSquare(to, test(WHITE_TURN))) {
+						addMove(Move.of(from, to));
 					}
 				}
+				return;
+			case WHITE_BISHOP:
+			case BLACK_BISHOP:
+				directions = BISHOP_DIRECTIONS;
+				break;
+			case WHITE_ROOK:
+			case BLACK_ROOK:
+				directions = ROOK_DIRECTIONS;
+				break;
+			default:
+				directions = KING_DIRECTIONS;
+		}
+		for (byte direction : directions) {
+			if (Pin.fromDirection(direction) != line) {
+				generateSlidingPieceMoves(from, direction, GeneratorMode.QUIET_MOVES);
 			}
-		} else {
-			movesCount = generateLegalKingMoves(checkedKing, outputMoves, mode);
 		}
-		return movesCount;
+	}
+
+	/**
+	 * @return pieces of the other color that attack the king
+	 */
+	private long getCheckers(int king, boolean isKingWhite) {
+		long occupied = whiteOccupancy | blackOccupancy;
+		long queens = bitboards[isKingWhite ? Content.BLACK_QUEEN.asByte : Content.WHITE_QUEEN.asByte];
+		long bishoplikes = queens | bitboards[isKingWhite ? Content.BLACK_BISHOP.asByte : Content.WHITE_BISHOP.asByte];
+		long rooklikes = queens | bitboards[isKingWhite ? Content.BLACK_ROOK.asByte : Content.WHITE_ROOK.asByte];
+		return (Attacks.knight(king) & bitboards[isKingWhite ? Content.BLACK_KNIGHT.asByte : Content.WHITE_KNIGHT.asByte])
+				| (Attacks.pawn(isKingWhite, king) & bitboards[isKingWhite ? Content.BLACK_PAWN.asByte : Content.WHITE_PAWN.asByte])
+				| (Attacks.bishop(king, occupied) & bishoplikes)
+				| (Attacks.rook(king, occupied) & rooklikes);
 	}
 
 	/**
@@ -1206,9 +2068,39 @@ public class State {
 		return !isSquareCheckedBy(king, isWhiteTurn);
 	}
 
+	/**
+	 * Snapshot of the state taken before makeMove()
+	 */
+	private static final class Undo {
+		final short[] board0x88 = new short[128];
+		final PieceLists pieces;
+		final long[] bitboards = new long[BITBOARDS_COUNT];
+		long whiteOccupancy;
+		long blackOccupancy;
+		long whitePinnedPieces;
+		long blackPinnedPieces;
+		byte validPins;
+		byte flags;
+		byte enPassantSquare;
+		long zobristKey;
+		byte halfmoveClock;
+		int fullMoveCounter;
+		byte from;
+		byte to;
+		Content promotion;
+
+		Undo(PieceLists pieces) {
+			this.pieces = pieces;
+		}
+	}
+
 	public enum GeneratorMode {
 		ALL_MOVES,
 		// captures and promotions
-		TACTICAL_MOVES;
+		TACTICAL_MOVES,
+		// all moves but tactical ones
+		QUIET_MOVES,
+		// quiet moves giving check, castling excluded. Nothing is generated when the side to move is in check.
+		CHECKS;
 	}
 }
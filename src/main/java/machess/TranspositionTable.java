@@ -0,0 +1,133 @@
+package machess;
+
+import java.util.Arrays;
+
+import static machess.HashBuckets.*;
+
+/**
+ * https://www.chessprogramming.org/Transposition_Table
+ * Buckets of two entries: the first one is replaced only by a deeper (or equally deep) search or by the current search
+ * replacing an entry of some previous one. The second one is always replaced.
+ *
+ * Entry is two longs: zobrist key XOR data and data packed as
+ * ssssssss ssssssss ssssssss ssssssss aaaddddd dbbmmmmm mmmmmmmm mmmmmmmm
+ *
+ * m - move packed by {@link Move}
+ * b - bound
+ * d - depth
+ * a - age - which search stored the entry
+ * s - score
+ *
+ * Threads read and write entries without locking - https://www.chessprogramming.org/Shared_Hash_Table#Lockless
+ * An entry torn by concurrent writes doesn't match the key XOR data check and is treated as a miss.
+ */
+public class TranspositionTable {
+	public static final int EXACT 		= 1;
+	public static final int LOWER_BOUND = 2;
+	public static final int UPPER_BOUND = 3;
+
+	private static final int MOVE_MASK 			= 0x1F_FFFF;
+	private static final int BOUND_BIT_OFFSET 	= 21;
+	private static final int BOUND_MASK 		= 0x03;
+	private static final int DEPTH_BIT_OFFSET 	= 23;
+	private static final int DEPTH_MASK 		= 0x3F;
+	private static final int AGE_BIT_OFFSET 	= 29;
+	private static final int AGE_MASK 			= 0x07;
+	private static final int SCORE_BIT_OFFSET 	= 32;
+
+	private long[] entries;
+	private int bucketsMask;
+	private int age;
+
+	public TranspositionTable(int megabytes) {
+		resize(megabytes);
+	}
+
+	/**
+	 * Allocates the largest power-of-two number of buckets that fits in given size. Content is lost.
+	 */
+	public void resize(int megabytes) {
+		entries = HashBuckets.allocate(megabytes);
+		bucketsMask = HashBuckets.bucketsMask(entries);
+	}
+
+	public void clear() {
+		Arrays.fill(entries, 0);
+	}
+
+	/**
+	 * Entries stored by previous searches can be replaced by any entry of the next one
+	 */
+	public void newSearch() {
+		age = (age + 1) & AGE_MASK;
+	}
+
+	/**
+	 * @return packed entry data or 0 if the position is not stored
+	 */
+	long probe(long zobristKey) {
+		int bucket = bucketIndex(zobristKey, bucketsMask);
+		long data = entries[bucket + 1];
+		if ((entries[bucket] ^ data) == zobristKey) {
+			return data;
+		}
+		data = entries[bucket + LONGS_PER_ENTRY + 1];
+		if ((entries[bucket + LONGS_PER_ENTRY] ^ data) == zobristKey) {
+			return data;
+		}
+		return 0;
+	}
+
+	/**
+	 * @param score - score relative to the stored position, see {@link Scorer}
+	 */
+	void store(long zobristKey, int move, int score, int depth, int bound) {
+		int bucket = bucketIndex(zobristKey, bucketsMask);
+		long data = pack(move, score, depth, bound);
+		long storedData = entries[bucket + 1];
+		boolean isSameKey = (entries[bucket] ^ storedData) == zobristKey;
+		if (!isSameKey && storedData != 0 && depth < getDepth(storedData) && getAge(storedData) == age) {
+			// depth-preferred entry stays, always-replace one is overwritten
+			bucket += LONGS_PER_ENTRY;
+			storedData = entries[bucket + 1];
+			isSameKey = (entries[bucket] ^ storedData) == zobristKey;
+		}
+		if (move == Move.NONE && isSameKey) {
+			// keep the best move found by earlier search of this position
+			data |= getMove(storedData);
+		}
+		entries[bucket] = zobristKey ^ data;
+		entries[bucket + 1] = data;
+	}
+
+	private long pack(int move, int score, int depth, int bound) {
+		assert bound >= EXACT && bound <= UPPER_BOUND : "Invalid bound: " + bound;
+		assert depth >= 0 : "Negative depth: " + depth;
+		// every field is widened before shifting - age << 29 overflows int and would sign-extend over the score
+		return (long) score << SCORE_BIT_OFFSET
+				| (long) age << AGE_BIT_OFFSET
+				| (long) Math.min(depth, DEPTH_MASK) << DEPTH_BIT_OFFSET
+				| (long) bound << BOUND_BIT_OFFSET
+				| (long) (move & MOVE_MASK);
+	}
+
+	static int getMove(long data) {
+		return (int) data & MOVE_MASK;
+	}
+
+	static int getBound(long data) {
+		return (int) (data >>> BOUND_BIT_OFFSET) & BOUND_MASK;
+	}
+
+	static int getDepth(long data) {
+		return (int) (data >>> DEPTH_BIT_OFFSET) & DEPTH_MASK;
+	}
+
+	private static int getAge(long data) {
+		return (int) (data >>> AGE_BIT_OFFSET) & AGE_MASK;
+	}
+
+	static int getScore(long data) {
+		return (int) (data >> SCORE_BIT_OFFSET);
+	}
+}
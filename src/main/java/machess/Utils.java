@@ -1,7 +1,5 @@
 package machess;
 
-import machess.board0x88.Square0x88;
-
 import java.math.BigInteger;
 import java.time.Clock;
 import java.time.Instant;
@@ -37,26 +35,6 @@ public class Utils {
 		return NANO_CLOCK.instant();
 	}
 
-	/**
-	 * Insertion sort of pawns by their file
-	 * @param pawns - pawn locations given as 0x88 squares
-	 */
-	static void sortByFiles(byte[] pawns, int pawnsCount)	{
-		for (int i = 1; i < pawnsCount; ++i) {
-			byte key = pawns[i];
-			int j = i - 1;
-
-            /* Move elements of arr[0..i-1], that are
-               greater than key, to one position ahead
-               of their current position */
-			while (j >= 0 && Square0x88.getFile(pawns[j]) > Square0x88.getFile(key)) {
-				pawns[j + 1] = pawns[j];
-				j = j - 1;
-			}
-			pawns[j + 1] = key;
-		}
-	}
-
 	public static String spaces(CharSequence... tokens) {
 		return String.join(" ", tokens);
 	}
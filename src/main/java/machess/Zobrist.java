@@ -0,0 +1,68 @@
+package machess;
+
+import machess.board0x88.Square0x88;
+
+import java.util.Random;
+
+/**
+ * Random keys of https://www.chessprogramming.org/Zobrist_Hashing
+ * Keys are generated from a constant seed so that position keys are the same on every run.
+ */
+final class Zobrist {
+	private static final long SEED = 0x7A6F62726973744CL;
+
+	/**
+	 * Indexed by Content.asByte and 0x88 square
+	 */
+	private static final long[][] PIECES = new long[16][128];
+	/**
+	 * Indexed by all combinations of side to move and castling flags
+	 */
+	private static final long[] FLAGS = new long[32];
+	private static final long[] EN_PASSANT_FILES = new long[8];
+
+	static {
+		Random random = new Random(SEED);
+		for (Content piece : Content.values()) {
+			if (piece == Content.EMPTY) {
+				continue;
+			}
+			for (int square = 0; square < 128; square++) {
+				if (Square0x88.inBounds((byte) square)) {
+					PIECES[piece.asByte][square] = random.nextLong();
+				}
+			}
+		}
+		long[] flagKeys = new long[5];
+		for (int bit = 0; bit < flagKeys.length; bit++) {
+			flagKeys[bit] = random.nextLong();
+		}
+		for (int flags = 0; flags < FLAGS.length; flags++) {
+			for (int bit = 0; bit < flagKeys.length; bit++) {
+				if ((flags & 1 << bit) != 0) {
+					FLAGS[flags] ^= flagKeys[bit];
+				}
+			}
+		}
+		for (int file = 0; file < EN_PASSANT_FILES.length; file++) {
+			EN_PASSANT_FILES[file] = random.nextLong();
+		}
+	}
+
+	private Zobrist() {}
+
+	static long piece(Content piece, byte square0x88) {
+		return PIECES[piece.asByte][square0x88];
+	}
+
+	/**
+	 * @param flags - side to move and castling flags of State
+	 */
+	static long flags(byte flags) {
+		return FLAGS[flags & (FLAGS.length - 1)];
+	}
+
+	static long enPassant(byte enPassantSquare) {
+		return EN_PASSANT_FILES[Square0x88.getFile(enPassantSquare)];
+	}
+}
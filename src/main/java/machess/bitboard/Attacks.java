@@ -0,0 +1,232 @@
+package machess.bitboard;
+
+/**
+ * Attack tables. Knight, king and pawn attacks are precomputed per square. Sliding pieces are looked up with magic
+ * bitboards (https://www.chessprogramming.org/Magic_Bitboards). Magic numbers are precomputed so that only the attack
+ * tables have to be filled at class initialization.
+ */
+public final class Attacks {
+    // {deltaFile, deltaRank}
+    private static final int[][] ROOK_DIRECTIONS = {{0, 1}, {1, 0}, {0, -1}, {-1, 0}};
+    private static final int[][] BISHOP_DIRECTIONS = {{1, 1}, {1, -1}, {-1, -1}, {-1, 1}};
+    private static final int[][] KNIGHT_JUMPS = {{1, 2}, {2, 1}, {2, -1}, {1, -2}, {-1, -2}, {-2, -1}, {-2, 1}, {-1, 2}};
+    private static final int[][] KING_STEPS = {{0, 1}, {1, 1}, {1, 0}, {1, -1}, {0, -1}, {-1, -1}, {-1, 0}, {-1, 1}};
+    private static final int[][] WHITE_PAWN_CAPTURES = {{-1, 1}, {1, 1}};
+    private static final int[][] BLACK_PAWN_CAPTURES = {{-1, -1}, {1, -1}};
+
+    private static final long[] ROOK_MAGIC_NUMBERS = {
+            0x0080001063804001L, 0x10C0009000200040L, 0x0200102242000880L, 0x4480040800801003L,
+            0x2080040080424800L, 0xD100020801000400L, 0x2500020024008100L, 0x2180088001244300L,
+            0x0000802040008002L, 0x4008802001834002L, 0x0406002042021080L, 0x4041000D00100020L,
+            0x0080808004000800L, 0x0004800400020080L, 0x0000800100020080L, 0x0893000041000882L,
+            0x0000818000400120L, 0x18A0008040002081L, 0x1100808020001000L, 0x0001818008001000L,
+            0x0003010004100800L, 0x0040808002000400L, 0x040C8C0022101148L, 0x0400020001108044L,
+            0x2080004440042008L, 0x4400200080400080L, 0x0400410500200010L, 0x1815104200082200L,
+            0x0048080080040080L, 0x4001002300040008L, 0x1014010080800200L, 0x0040208200004411L,
+            0x8240400080800026L, 0x0041084001002084L, 0x0000200080801000L, 0x0011801004800800L,
+            0x0008001101000804L, 0x0004004100400200L, 0x000012210C000810L, 0x0820204402000081L,
+            0x0000209040008004L, 0x5210002000404000L, 0x006841002001001AL, 0x0100100021010008L,
+            0x0048080004008080L, 0x0092000411020008L, 0x0080881001040082L, 0x1080210040820004L,
+            0x0200400080082C80L, 0x8010044000200840L, 0x4020100084200480L, 0x0200210008100100L,
+            0x0021000800141300L, 0x0102040080020080L, 0x0022011008020400L, 0x80084100824C0600L,
+            0x082304A8800040D1L, 0x2004400100295081L, 0x0002090020001041L, 0x1130000810050021L,
+            0x000D001008000403L, 0x2801000208040001L, 0x8003011000820804L, 0x0010004114008022L
+    };
+    private static final long[] BISHOP_MAGIC_NUMBERS = {
+            0x8040411410809100L, 0x0011020204002404L, 0xC021690400801102L, 0x8020890102800008L,
+            0xC03410448C200040L, 0x8222021004000020L, 0x0000440484400C40L, 0x0000440048025000L,
+            0x01200420A8022080L, 0x048682840C108210L, 0x0401100922411108L, 0x0001022082000001L,
+            0x0010840420049000L, 0x90C8A21802080001L, 0x8405104250500806L, 0x940A428048123000L,
+            0x2090020410029820L, 0x0220080801044090L, 0x0208080408101010L, 0x580480080A004104L,
+            0x0000808403A00000L, 0x020100888080C002L, 0x8022180402020280L, 0x20004002010C0140L,
+            0x8208400208900100L, 0x2826124821280210L, 0x0088042022082200L, 0x209004000E440098L,
+            0x2001010044104002L, 0x00C68A0201010A80L, 0x0201410080580802L, 0x10108A0001010080L,
+            0x00A4202110856410L, 0x101804024010222EL, 0x0A00202800040804L, 0x0000440108040100L,
+            0x8430008200002200L, 0x0802080C40220050L, 0x010800A109440100L, 0x8104440280804440L,
+            0x1008080808000424L, 0x0120480809800400L, 0x8028201048001002L, 0x000A04C202200800L,
+            0x0210420202002C10L, 0x0801501000800840L, 0x000230041102C4A1L, 0x0818420420440C20L,
+            0x0440420804C00004L, 0x0000220104200008L, 0x8009220842080402L, 0x8042201104090800L,
+            0x2001107002021440L, 0x003008600820804CL, 0x0640020214010402L, 0x0120810240810000L,
+            0x903A024300886002L, 0x0000984048041044L, 0x0800008200420825L, 0x1004300890208802L,
+            0x0048000040082201L, 0x0000220608101900L, 0x0000090208980100L, 0x0002041004084081L
+    };
+
+    private static final Magic[] ROOK_MAGICS = new Magic[64];
+    private static final Magic[] BISHOP_MAGICS = new Magic[64];
+
+    private static final long[] KNIGHT_ATTACKS = new long[64];
+    private static final long[] KING_ATTACKS = new long[64];
+    private static final long[] WHITE_PAWN_ATTACKS = new long[64];
+    private static final long[] BLACK_PAWN_ATTACKS = new long[64];
+
+    /**
+     * Squares strictly between two squares lying on a common line. Empty for squares that are not aligned.
+     */
+    private static final long[][] BETWEEN = new long[64][64];
+    /**
+     * Whole line (rank, file, diagonal or antidiagonal) going through two aligned squares. Empty for squares that are
+     * not aligned.
+     */
+    private static final long[][] LINE = new long[64][64];
+
+    static {
+        for (int square = 0; square < 64; square++) {
+            ROOK_MAGICS[square] = initMagic(square, ROOK_DIRECTIONS, ROOK_MAGIC_NUMBERS[square]);
+            BISHOP_MAGICS[square] = initMagic(square, BISHOP_DIRECTIONS, BISHOP_MAGIC_NUMBERS[square]);
+            initLines(square, ROOK_DIRECTIONS);
+            initLines(square, BISHOP_DIRECTIONS);
+            KNIGHT_ATTACKS[square] = steps(square, KNIGHT_JUMPS);
+            KING_ATTACKS[square] = steps(square, KING_STEPS);
+            WHITE_PAWN_ATTACKS[square] = steps(square, WHITE_PAWN_CAPTURES);
+            BLACK_PAWN_ATTACKS[square] = steps(square, BLACK_PAWN_CAPTURES);
+        }
+    }
+
+    private Attacks() {}
+
+    public static long rook(int square, long occupied) {
+        return ROOK_MAGICS[square].attacks(occupied);
+    }
+
+    public static long bishop(int square, long occupied) {
+        return BISHOP_MAGICS[square].attacks(occupied);
+    }
+
+    public static long queen(int square, long occupied) {
+        return rook(square, occupied) | bishop(square, occupied);
+    }
+
+    public static long knight(int square) {
+        return KNIGHT_ATTACKS[square];
+    }
+
+    public static long king(int square) {
+        return KING_ATTACKS[square];
+    }
+
+    public static long pawn(boolean isWhite, int square) {
+        return isWhite ? WHITE_PAWN_ATTACKS[square] : BLACK_PAWN_ATTACKS[square];
+    }
+
+    public static long between(int square1, int square2) {
+        return BETWEEN[square1][square2];
+    }
+
+    public static long line(int square1, int square2) {
+        return LINE[square1][square2];
+    }
+
+    private static Magic initMagic(int square, int[][] directions, long magic) {
+        long mask = relevantOccupancyMask(square, directions);
+        int bits = Long.bitCount(mask);
+        int size = 1 << bits;
+
+        long[] table = new long[size];
+        boolean[] written = new boolean[size];
+        long subset = 0;
+        for (int i = 0; i < size; i++) {
+            long attacks = slidingAttacks(square, subset, directions);
+            int index = (int) ((subset * magic) >>> (64 - bits));
+            if (written[index] && table[index] != attacks) {
+                throw new IllegalStateException("Magic number collision on square: " + square);
+            }
+            written[index] = true;
+            table[index] = attacks;
+            // Carry-Rippler trick: enumerates all subsets of mask
+            subset = (subset - mask) & mask;
+        }
+        return new Magic(mask, magic, 64 - bits, table);
+    }
+
+    /**
+     * Squares that may block a slider. Last squares of rays are skipped as a piece there can't block anything.
+     */
+    private static long relevantOccupancyMask(int square, int[][] directions) {
+        long mask = 0;
+        for (int[] direction : directions) {
+            int file = Bitboard.getFile(square) + direction[0];
+            int rank = Bitboard.getRank(square) + direction[1];
+            while (onBoard(file + direction[0], rank + direction[1])) {
+                mask |= bit(file, rank);
+                file += direction[0];
+                rank += direction[1];
+            }
+        }
+        return mask;
+    }
+
+    private static long slidingAttacks(int square, long occupied, int[][] directions) {
+        long attacks = 0;
+        for (int[] direction : directions) {
+            int file = Bitboard.getFile(square) + direction[0];
+            int rank = Bitboard.getRank(square) + direction[1];
+            while (onBoard(file, rank)) {
+                long attacked = bit(file, rank);
+                attacks |= attacked;
+                if ((occupied & attacked) != 0) {
+                    break;
+                }
+                file += direction[0];
+                rank += direction[1];
+            }
+        }
+        return attacks;
+    }
+
+    private static void initLines(int square, int[][] directions) {
+        for (int[] direction : directions) {
+            int[][] bothWays = {direction, {-direction[0], -direction[1]}};
+            long line = slidingAttacks(square, 0, bothWays) | 1L << square;
+
+            long between = 0;
+            int file = Bitboard.getFile(square) + direction[0];
+            int rank = Bitboard.getRank(square) + direction[1];
+            while (onBoard(file, rank)) {
+                int other = rank * 8 + file;
+                BETWEEN[square][other] = between;
+                LINE[square][other] = line;
+                between |= bit(file, rank);
+                file += direction[0];
+                rank += direction[1];
+            }
+        }
+    }
+
+    private static long steps(int square, int[][] deltas) {
+        long attacks = 0;
+        for (int[] delta : deltas) {
+            int file = Bitboard.getFile(square) + delta[0];
+            int rank = Bitboard.getRank(square) + delta[1];
+            if (onBoard(file, rank)) {
+                attacks |= bit(file, rank);
+            }
+        }
+        return attacks;
+    }
+
+    private static boolean onBoard(int file, int rank) {
+        return file >= 0 && file < 8 && rank >= 0 && rank < 8;
+    }
+
+    private static long bit(int file, int rank) {
+        return 1L << (rank * 8 + file);
+    }
+
+    private static final class Magic {
+        final long mask;
+        final long magic;
+        final int shift;
+        final long[] attacks;
+
+        Magic(long mask, long magic, int shift, long[] attacks) {
+            this.mask = mask;
+            this.magic = magic;
+            this.shift = shift;
+            this.attacks = attacks;
+        }
+
+        long attacks(long occupied) {
+            return attacks[(int) (((occupied & mask) * magic) >>> shift)];
+        }
+    }
+}
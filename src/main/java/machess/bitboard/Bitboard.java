@@ -0,0 +1,49 @@
+package machess.bitboard;
+
+/**
+ * https://www.chessprogramming.org/Bitboards
+ * Squares are indexed rank by rank: A1 = 0, B1 = 1, ..., H8 = 63 (little-endian rank-file mapping).
+ */
+public final class Bitboard {
+    public static final long EMPTY = 0L;
+
+    private Bitboard() {}
+
+    /**
+     * @return bitboard index in 0-63 range
+     */
+    public static int fromSquare0x88(byte square0x88) {
+        return (square0x88 + (square0x88 & 7)) >> 1;
+    }
+
+    public static byte toSquare0x88(int square) {
+        return (byte) (square + (square & ~7));
+    }
+
+    public static long of(byte square0x88) {
+        return 1L << fromSquare0x88(square0x88);
+    }
+
+    public static int getFile(int square) {
+        return square & 7;
+    }
+
+    public static int getRank(int square) {
+        return square >>> 3;
+    }
+
+    /**
+     * @return index of the least significant set bit
+     */
+    public static int first(long bitboard) {
+        return Long.numberOfTrailingZeros(bitboard);
+    }
+
+    public static long withoutFirst(long bitboard) {
+        return bitboard & (bitboard - 1);
+    }
+
+    public static boolean hasMoreThanOne(long bitboard) {
+        return withoutFirst(bitboard) != 0;
+    }
+}
@@ -25,6 +25,8 @@ public class UCI {
     public static final String SCORE = "score";
     public static final String MATE_IN = "mate";
     public static final String CENTIPAWNS = "cp";
+    public static final String LOWERBOUND = "lowerbound";
+    public static final String UPPERBOUND = "upperbound";
 
     // nodes per second
     public static final String NPS = "nps";
@@ -36,14 +38,77 @@ public class UCI {
     public static final String WHITE_INCREMENT = "winc";
     public static final String BLACK_INCREMENT = "binc";
     public static final String MOVESTOGO = "movestogo";
+    public static final String PONDER = "ponder";
+    public static final String INFINITE = "infinite";
+    public static final String PONDERHIT = "ponderhit";
 
 
     public static final String BESTMOVE = "bestmove";
 
     public static final String QUIT = "quit";
+    public static final String STOP = "stop";
+    public static final String DEBUG_ON = "debug on";
+    public static final String DEBUG_OFF = "debug off";
+    public static final String INFO_STRING = "info string";
+
+    public static final String BENCH = "bench";
+    private static final String PERFT_HASH = "hash";
+
+    public static final String SETOPTION = "setoption";
+    private static final String HASH_OPTION = "Hash";
+    private static final int MAX_HASH_MEGABYTES = 1024;
+    private static final String THREADS_OPTION = "Threads";
+    /**
+     * Tells GUI that engine can ponder. Nothing to set on engine side - it ponders only when told "go ponder".
+     */
+    private static final String PONDER_OPTION = "Ponder";
+    private static final int MAX_THREADS = 256;
+
+    /**
+     * Depths skipped by helper threads so that they search different depths than the main thread and each other.
+     * Helper skips depth when ((depth + phase) / size) is odd. Indexed by helper number modulo table length.
+     */
+    private static final int[] HELPER_SKIP_SIZES  = {1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3, 4, 4, 4, 4, 4, 4, 4, 4};
+    private static final int[] HELPER_SKIP_PHASES = {0, 1, 0, 1, 2, 3, 0, 1, 2, 3, 4, 5, 0, 1, 2, 3, 4, 5, 6, 7};
+
+    /**
+     * Iterations from this depth start with a window of +-ASPIRATION_WINDOW around the previous score. The failing side
+     * of the window is widened twice on every re-search and opened fully once wider than ASPIRATION_MAX_WINDOW.
+     */
+    private static final int ASPIRATION_MIN_DEPTH = 3;
+    private static final int ASPIRATION_WINDOW = 30;
+    private static final int ASPIRATION_MAX_WINDOW = 500;
+
+    /**
+     * Perft positions (https://www.chessprogramming.org/Perft_Results) and depths used by bench command
+     */
+    private static final String[] BENCH_POSITIONS = {
+            "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+            "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+            "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+            "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+            "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+    };
+    private static final int[] BENCH_DEPTHS = {5, 4, 5, 4, 4};
 
     private State state;
 
+    /**
+     * Thread running iterative deepening so that stdin is read during search. Null when no search was started.
+     */
+    private Thread searchThread;
+    private SuddenDeathWorker searchWorker;
+
+    /**
+     * Set by "debug on" UCI command
+     */
+    private boolean debug;
+
+    /**
+     * One per search thread - https://www.chessprogramming.org/Lazy_SMP. The first one is the main thread.
+     */
+    private Scorer[] scorers = createScorers(Config.THREADS);
+
     public void startEngine() {
         Scanner scanner = new Scanner(System.in);
         while (true) {
@@ -54,24 +119,44 @@ public class UCI {
     private void tryToParseInput(String input) {
         try {
             if (input.equals("ucinewgame")) {
+                stopSearch();
                 newGame();
             } else if (input.equals("uci")) {
                 enterUci();
             } else if (input.equals("isready")) {
                 isReady();
             } else if (input.startsWith(POSITION)) {
+                stopSearch();
                 setPosition(input.substring(POSITION.length()).trim());
+            } else if (input.startsWith(SETOPTION)) {
+                stopSearch();
+                setOption(input.substring(SETOPTION.length()).trim());
+            } else if (input.equals(STOP)) {
+                stop();
+            } else if (input.equals(PONDERHIT)) {
+                ponderHit();
+            } else if (input.equals(DEBUG_ON)) {
+                debug = true;
+            } else if (input.equals(DEBUG_OFF)) {
+                debug = false;
             } else if (input.startsWith(GO)) {
                 go(input.substring(GO.length()).trim());
             } else if (input.equals("tostr")) {
+                stopSearch();
                 System.out.println(state);
+            } else if (input.startsWith(BENCH)) {
+                stopSearch();
+                runBench();
             } else if (input.startsWith("perft")) {
+                stopSearch();
                 runPerftDivide(input);
             } else if (input.equals("eval")) {
+                stopSearch();
                 printEvaluation();
             } else if (input.startsWith(Config.DEBUG_LINE_KEY)) {
                 setDebugLine(input.substring(Config.DEBUG_LINE_KEY.length()).trim());
             } else if (input.startsWith(QUIT)) {
+                stopSearch();
                 System.exit(0);
             }
         } catch (Exception ex) {
@@ -82,7 +167,7 @@ public class UCI {
 
     private void printEvaluation() {
         if (state != null) {
-            System.out.println(spaces(UCI.INFO, UCI.SCORE, formatScore(Scorer.evaluate(state,0))));
+            System.out.println(spaces(UCI.INFO, UCI.SCORE, formatScore(scorers[0].evaluate(state,0))));
         }
     }
 
@@ -91,8 +176,54 @@ public class UCI {
     }
 
     private void go(String input) {
+        stopSearch();
         SuddenDeathWorker worker = new SuddenDeathWorker(input, state.test(State.WHITE_TURN));
-        worker.doIterativeDeepening();
+        // reset before the thread starts so that a stop sent right after go is not lost
+        for (Scorer scorer : scorers) {
+            scorer.newSearch();
+        }
+        worker.startClock();
+        searchWorker = worker;
+        searchThread = new Thread(worker::doIterativeDeepening, "search");
+        searchThread.start();
+    }
+
+    /**
+     * The move pondered on was played - search goes on with the time of the engine's move
+     */
+    private void ponderHit() {
+        if (searchWorker != null) {
+            searchWorker.ponderHit();
+        }
+    }
+
+    private void stop() {
+        long before = System.nanoTime();
+        boolean wasSearching = stopSearch();
+        if (debug && wasSearching) {
+            long micros = (System.nanoTime() - before) / 1000;
+            System.out.println(spaces(INFO_STRING, "stop to bestmove", Long.toString(micros), "us"));
+        }
+    }
+
+    /**
+     * Terminates search threads and waits until bestmove is sent
+     * @return true if there was a search running
+     */
+    private boolean stopSearch() {
+        if (searchThread == null || !searchThread.isAlive()) {
+            return false;
+        }
+        for (Scorer scorer : scorers) {
+            scorer.terminate();
+        }
+        searchWorker.stop();
+        try {
+            searchThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
     }
 
     private void setPosition(String positionCommand) {
@@ -113,19 +244,62 @@ public class UCI {
             }
         }
     }
+    /**
+     * @param command - "perft [depth]", "perft [depth] [threads]" for perft split into parallel tasks, optionally
+     *                followed by "hash" for perft with cache of subtrees counts
+     */
     private void runPerftDivide(String command) {
-        String[] tokens = command.split(" ");
-        if (tokens.length != 2) {
+        String[] tokens = command.split(" +");
+        boolean hashed = tokens[tokens.length - 1].equals(PERFT_HASH);
+        int tokensCount = hashed ? tokens.length - 1 : tokens.length;
+        if (tokensCount != 2 && tokensCount != 3) {
             return;
         }
 
         try {
-            Scorer.perftDivide(state, Integer.parseInt(tokens[1]), State.GeneratorMode.ALL_MOVES);
+            int depth = Integer.parseInt(tokens[1]);
+            if (tokensCount == 3 || hashed) {
+                int threads = tokensCount == 3 ? Integer.parseInt(tokens[2]) : 1;
+                PerftCache cache = hashed ? new PerftCache(Config.PERFT_HASH_MEGABYTES) : null;
+                ParallelPerft.perftDivide(state, depth, State.GeneratorMode.ALL_MOVES, threads, cache);
+            } else {
+                Scorer.perftDivide(state, depth, State.GeneratorMode.ALL_MOVES);
+            }
         } catch(NumberFormatException ex) {
 
         }
     }
 
+    /**
+     * Runs perft on bench positions with 0x88 and with bitboard sliding pieces. Each is run twice so that the second
+     * run is measured after JIT warm-up.
+     */
+    private void runBench() {
+        boolean bitboardMode = State.isBitboardMode();
+        try {
+            for (int run = 0; run < 2; run++) {
+                runBench("0x88", false);
+                runBench("bitboards", true);
+            }
+        } finally {
+            State.setBitboardMode(bitboardMode);
+        }
+    }
+
+    private void runBench(String name, boolean bitboardMode) {
+        State.setBitboardMode(bitboardMode);
+        long nodes = 0;
+        Instant before = Utils.nanoNow();
+        for (int i = 0; i < BENCH_POSITIONS.length; i++) {
+            nodes += Scorer.perft(FEN.parse(BENCH_POSITIONS[i]), BENCH_DEPTHS[i], State.GeneratorMode.ALL_MOVES);
+        }
+        Duration elapsedTime = Duration.between(before, Utils.nanoNow());
+        System.out.println(spaces(INFO, "string", BENCH, name,
+                NODES, Long.toString(nodes),
+                TIME, Long.toString(elapsedTime.toMillis()),
+                NPS, Long.toString(calcNodesPerSecond(nodes, elapsedTime.toNanos()))));
+    }
+
     public static State parseState(String positionWithoutMoves) {
         if (positionWithoutMoves.startsWith(STARTPOS)) {
             return new State();
@@ -145,9 +319,54 @@ public class UCI {
     }
 
     private void newGame() {
+        Scorer.transpositionTable.clear();
+        for (Scorer scorer : scorers) {
+            scorer.newGame();
+        }
     }
 
     private void presentOptions() {
+        System.out.println("option name " + HASH_OPTION + " type spin default " + Config.HASH_MEGABYTES
+                + " min 1 max " + MAX_HASH_MEGABYTES);
+        System.out.println("option name " + PONDER_OPTION + " type check default false");
+        System.out.println("option name " + THREADS_OPTION + " type spin default " + Config.THREADS
+                + " min 1 max " + MAX_THREADS);
+    }
+
+    /**
+     * @param option - "name [id] value [x]"
+     */
+    private void setOption(String option) {
+        String[] tokens = option.split(" +");
+        if (tokens.length == 4 && tokens[0].equals("name") && tokens[1].equals(HASH_OPTION)
+                && tokens[2].equals("value")) {
+            int megabytes = Math.max(1, Math.min(Integer.parseInt(tokens[3]), MAX_HASH_MEGABYTES));
+            Scorer.transpositionTable.resize(megabytes);
+        } else if (tokens.length == 4 && tokens[0].equals("name") && tokens[1].equals(THREADS_OPTION)
+                && tokens[2].equals("value")) {
+            scorers = createScorers(Math.max(1, Math.min(Integer.parseInt(tokens[3]), MAX_THREADS)));
+        } else if (tokens.length == 4 && tokens[0].equals("name") && tokens[1].equals(PONDER_OPTION)
+                && tokens[2].equals("value")) {
+            // nothing to set - see PONDER_OPTION
+        } else {
+            System.out.println(spaces(INFO_STRING, "Unknown option:", option));
+        }
+    }
+
+    private static Scorer[] createScorers(int threads) {
+        Scorer[] scorers = new Scorer[threads];
+        for (int i = 0; i < threads; i++) {
+            scorers[i] = new Scorer(i == 0);
+        }
+        return scorers;
+    }
+
+    private int countNodesEvaluated() {
+        int nodes = 0;
+        for (Scorer scorer : scorers) {
+            nodes += scorer.getNodesEvaluated();
+        }
+        return nodes;
     }
 
     private static String info(int nodesEvaluated, Line pvLine, long elapsedMillis, int depth,
@@ -189,54 +408,149 @@ public class UCI {
         private int maxDepth = Config.MAX_SEARCH_DEPTH;
         private boolean whiteTurn;
 
+        /**
+         * While pondering or searching infinitely bestmove is sent only after ponderhit or stop
+         */
+        private boolean pondering;
+        private boolean infinite;
+        private boolean stopped;
+
+        private volatile Instant before;
+        private volatile Instant finishTime;
+
         public SuddenDeathWorker(String timeParameters, boolean whiteTurn) {
             String[] tokens = timeParameters.split(" +");
 
-            for (int i = 0; i < tokens.length; i += 2) {
+            for (int i = 0; i < tokens.length; i++) {
                 switch (tokens[i]) {
                     case WHITE_TIME:
-                        whiteLeftMillis = Integer.parseInt(tokens[i + 1]);
+                        whiteLeftMillis = Integer.parseInt(tokens[++i]);
                         break;
                     case BLACK_TIME:
-                        blackLeftMillis = Integer.parseInt(tokens[i + 1]);
+                        blackLeftMillis = Integer.parseInt(tokens[++i]);
                         break;
                     case WHITE_INCREMENT:
-                        whiteIncrementMillis = Integer.parseInt(tokens[i + 1]);
+                        whiteIncrementMillis = Integer.parseInt(tokens[++i]);
                         break;
                     case BLACK_INCREMENT:
-                        blackIncrementMillis = Integer.parseInt(tokens[i + 1]);
+                        blackIncrementMillis = Integer.parseInt(tokens[++i]);
                         break;
                     case MOVESTOGO:
-                        givenMovesToGo = Integer.parseInt(tokens[i + 1]);
+                        givenMovesToGo = Integer.parseInt(tokens[++i]);
                         break;
                     case DEPTH:
-                        maxDepth  = Math.min(Integer.parseInt(tokens[i + 1]), Config.MAX_SEARCH_DEPTH);
+                        maxDepth  = Math.min(Integer.parseInt(tokens[++i]), Config.MAX_SEARCH_DEPTH);
+                        break;
+                    case PONDER:
+                        pondering = true;
+                        break;
+                    case INFINITE:
+                        infinite = true;
                         break;
                 }
             }
             this.whiteTurn = whiteTurn;
         }
 
+        /**
+         * Sets finish time of scorers. When pondering there's no time limit until ponderhit.
+         */
+        void startClock() {
+            before = Utils.nanoNow();
+            setFinishTime(pondering || infinite ? Instant.MAX : before.plus(calcTimeForNextMove()));
+        }
+
+        private void setFinishTime(Instant finishTime) {
+            this.finishTime = finishTime;
+            for (Scorer scorer : scorers) {
+                scorer.setFinishTime(finishTime);
+            }
+        }
+
+        /**
+         * Work done while pondering is kept - the search just gets the time limit of a normal move
+         */
+        synchronized void ponderHit() {
+            if (!pondering) {
+                return;
+            }
+            setFinishTime(Utils.nanoNow().plus(calcTimeForNextMove()));
+            pondering = false;
+            notifyAll();
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            notifyAll();
+        }
+
+        /**
+         * Holds bestmove when search finished before ponderhit or stop
+         */
+        private synchronized void waitForPonderHitOrStop() {
+            while ((pondering || infinite) && !stopped) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
         public void doIterativeDeepening() {
             String bestMove = "";
-            Instant before = Utils.nanoNow();
-            Instant finishTime = before.plus(calcTimeForNextMove());
-            Scorer.nodesEvaluated = 0;
+            String ponderMove = null;
+            Scorer.transpositionTable.newSearch();
+            Thread[] helpers = startHelpers();
             Line bestLine = Line.empty();
+            int previousScore = 0;
+            iterations:
             for (int depth = 1; depth <= maxDepth; depth++) {
-                Scorer.Result result = Scorer.startAlphaBeta(state, depth, finishTime, bestLine, Line.of(Config.debugLine()));
-                if (result.pv == null) { // when runs out of time returns null pv
-                    break;
+                boolean aspiration = depth >= ASPIRATION_MIN_DEPTH && !Scorer.scoreCloseToMating(previousScore);
+                int alphaDelta = ASPIRATION_WINDOW;
+                int betaDelta = ASPIRATION_WINDOW;
+                Scorer.Result result;
+                while (true) {
+                    int alpha = aspiration && alphaDelta <= ASPIRATION_MAX_WINDOW ? previousScore - alphaDelta : Scorer.MINUS_INFINITY;
+                    int beta = aspiration && betaDelta <= ASPIRATION_MAX_WINDOW ? previousScore + betaDelta : Scorer.INFINITY;
+                    result = scorers[0].startAlphaBeta(state, depth, alpha, beta, bestLine, Line.of(Config.debugLine()));
+                    if (result.pv == null) { // when runs out of time returns null pv
+                        break iterations;
+                    }
+                    if (result.bound == TranspositionTable.EXACT) {
+                        break;
+                    }
+                    Line boundLine;
+                    String boundScore;
+                    if (result.bound == TranspositionTable.UPPER_BOUND) {
+                        alphaDelta *= 2;
+                        boundLine = bestLine;
+                        boundScore = spaces(formatScore(result.score), UPPERBOUND);
+                    } else {
+                        betaDelta *= 2;
+                        // move that failed high is searched first
+                        bestLine = result.pv;
+                        boundLine = result.pv;
+                        boundScore = spaces(formatScore(result.score), LOWERBOUND);
+                    }
+                    Duration elapsedTime = Duration.between(before, Utils.nanoNow());
+                    int nodesEvaluated = countNodesEvaluated();
+                    System.out.println(info(nodesEvaluated, boundLine, elapsedTime.toMillis(), depth,
+                            calcNodesPerSecond(nodesEvaluated, elapsedTime.toNanos()), boundScore));
                 }
                 bestLine = result.pv;
+                previousScore = result.score;
 
                 Duration elapsedTime = Duration.between(before, Utils.nanoNow());
-                System.out.println(info(result.nodesEvaluated, result.pv,
+                int nodesEvaluated = countNodesEvaluated();
+                System.out.println(info(nodesEvaluated, result.pv,
                         elapsedTime.toMillis(), depth,
-                        calcNodesPerSecond(result.nodesEvaluated, elapsedTime.toNanos()),
+                        calcNodesPerSecond(nodesEvaluated, elapsedTime.toNanos()),
                         formatScore(result.score)));
 
                 bestMove = result.pv.moves[0];
+                ponderMove = result.pv.movesCount > 1 ? result.pv.moves[1] : null;
                 if (Instant.now().isAfter(finishTime)) {
                     break;
                 }
@@ -249,8 +563,56 @@ public class UCI {
                     break;
                 }
             }
-            System.out.println("nodes evaluateddd " + Scorer.nodesEvaluated);
-            System.out.println(BESTMOVE + " " + bestMove);
+            stopHelpers(helpers);
+            waitForPonderHitOrStop();
+            System.out.println("nodes evaluateddd " + countNodesEvaluated());
+            System.out.println(ponderMove != null ? spaces(BESTMOVE, bestMove, PONDER, ponderMove)
+                    : BESTMOVE + " " + bestMove);
+        }
+
+        /**
+         * Helpers search the same root and share only the transposition table with the main thread. Their results
+         * are never played - they just fill the table with entries the main thread would search later.
+         */
+        private Thread[] startHelpers() {
+            Thread[] helpers = new Thread[scorers.length - 1];
+            for (int i = 0; i < helpers.length; i++) {
+                Scorer scorer = scorers[i + 1];
+                int skipSize = HELPER_SKIP_SIZES[i % HELPER_SKIP_SIZES.length];
+                int skipPhase = HELPER_SKIP_PHASES[i % HELPER_SKIP_PHASES.length];
+                State rootState = state;
+                int helperMaxDepth = maxDepth;
+                helpers[i] = new Thread(() -> {
+                    Line bestLine = Line.empty();
+                    for (int depth = 1; depth <= helperMaxDepth; depth++) {
+                        if (((depth + skipPhase) / skipSize) % 2 != 0) {
+                            continue;
+                        }
+                        Scorer.Result result = scorer.startAlphaBeta(rootState, depth, bestLine, Line.empty());
+                        if (result.pv == null) {
+                            break;
+                        }
+                        bestLine = result.pv;
+                    }
+                }, "helper-" + (i + 1));
+                helpers[i].setDaemon(true);
+                helpers[i].start();
+            }
+            return helpers;
+        }
+
+        private void stopHelpers(Thread[] helpers) {
+            for (int i = 0; i < helpers.length; i++) {
+                scorers[i + 1].terminate();
+            }
+            for (Thread helper : helpers) {
+                try {
+                    helper.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
         }
 
         private Duration calcTimeForNextMove() {
@@ -4,6 +4,10 @@ import machess.interfaces.FEN;
 import machess.interfaces.UCI;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.*;
 
 public class StateTest {
@@ -144,6 +148,8 @@ public class StateTest {
         testAllMoves("n1n5/1Pk5/8/8/8/8/5Kp1/5N1N b - - 0 1", new long[] { 24,  421,  7421,  124608,  2193768,  37665329});
         testAllMoves("8/PPPk4/8/8/8/8/4Kppp/8 b - - 0 1", new long[] { 18,  270,  4699,  79355,  1533145,  28859283});
         testAllMoves("n1n5/PPPk4/8/8/8/8/4Kppp/5N1N b - - 0 1", new long[] { 24,  496,  9483,  182838,  3605103,  71179139});
+        // 9 queens - more pieces of one type than initially
+        testAllMoves("R6R/3Q4/1Q4Q1/4Q3/2Q4Q/Q4Q2/pp1Q4/kBNN1KB1 w - - 0 1", new long[] { 218,  99,  19073,  85043});
     }
 
     @Test
@@ -164,6 +170,303 @@ public class StateTest {
         testTacticalMoves("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1", new long[] { 0,  0,  34,  1576,  82719,  2812008});
     }
 
+    @Test
+    public void checkEvasionGenerationTest() {
+        // en passant capture of the pawn giving check
+        testAllMoves("8/8/8/2k5/3Pp3/8/8/4K3 b - d3 0 1", new long[] { 9,  50,  379,  2369,  17879,  111840});
+        // double push discovers check, pushed pawn can't be taken en passant to evade it
+        testAllMoves("8/8/8/6k1/3Pp3/8/8/2B1K3 b - d3 0 1", new long[] { 7,  86,  538,  6311,  41219,  499737});
+        // en passant capture gives check
+        testAllMoves("8/8/1k6/2b5/2pP4/8/5K2/8 b - d3 0 1", new long[] { 15,  126,  1928,  13931,  206379,  1440467});
+        // en passant capture would expose king along a diagonal or a rank
+        testAllMoves("8/5bk1/8/2Pp4/8/1K6/8/8 w - d6 0 1", new long[] { 8,  104,  736,  9287,  62297,  824064});
+        testAllMoves("8/8/8/8/k2Pp2Q/8/8/3K4 b - d3 0 1", new long[] { 6,  136,  863,  20471,  117741});
+        // discovered check
+        testAllMoves("8/8/1P2K3/8/2n5/1q6/8/5k2 b - - 0 1", new long[] { 29,  165,  5160,  31961,  1004658});
+        testAllMoves("8/8/2k5/5q2/5n2/8/5K2/8 b - - 0 1", new long[] { 37,  183,  6559,  23527});
+        testAllMoves("r3k2r/8/3Q4/8/8/5q2/8/R3K2R b KQkq - 0 1", new long[] { 44,  1494,  50509});
+        // promotion out of check
+        testAllMoves("2K2r2/4P3/8/8/8/8/8/3k4 w - - 0 1", new long[] { 11,  133,  1442,  19174,  266199});
+    }
+
+    @Test
+    public void bitboardMoveGenerationTest() {
+        State.setBitboardMode(true);
+        try {
+            testPosition(new State(), new long[]{20, 400, 8902, 197281, 4865609}, State.GeneratorMode.ALL_MOVES);
+            testAllMoves("r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1", new long[] { 48,  2039,  97862,  4085603,  });
+            testAllMoves("8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1", new long[] { 14,  191,  2812,  43238,  674624});
+            testAllMoves("r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1", new long[] { 6,  264,  9467,  422333});
+            testAllMoves("rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8", new long[] { 44,  1486,  62379,  2103487});
+            testAllMoves("B6b/8/8/8/2K5/4k3/8/b6B w - - 0 1", new long[] { 17,  278,  4607,  76778,  1320507});
+            testAllMoves("R6r/8/8/2K5/5k2/8/8/r6R w - - 0 1", new long[] { 36,  1027,  29215,  771461});
+            testAllMoves("6kq/8/8/8/8/8/8/7K w - - 0 1", new long[] { 2,  36,  143,  3637,  14893,  391507});
+            testTacticalMoves("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1", new long[] { 0,  0,  34,  1576,  82719});
+        } finally {
+            State.setBitboardMode(Config.BITBOARDS);
+        }
+    }
+
+    @Test
+    public void mobilityTest() {
+        // en passant square left after a2a4 must not let white pawn b2 capture on a3
+        State afterDoublePush = parseUciPosition("startpos moves a2a4");
+        assertEquals(20, afterDoublePush.countMobility(State.BLACK));
+        assertEquals(21, afterDoublePush.countMobility(State.WHITE));
+
+        testMobility("r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq -", "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R b KQkq -");
+        testMobility("rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ -", "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R b KQ -");
+        testMobility("8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - -", "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 b - -");
+    }
+
+    @Test
+    public void zobristKeyTest() {
+        assertEquals(new State().getZobristKey(), FEN.parse("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1").getZobristKey());
+        // transposition
+        assertEquals(parseUciPosition("startpos moves e2e4 e7e5 g1f3 b8c6").getZobristKey(),
+                parseUciPosition("startpos moves g1f3 b8c6 e2e4 e7e5").getZobristKey());
+        // side to move, castling rights and en passant file matter
+        State afterKnightsDance = parseUciPosition("startpos moves g1f3 g8f6 f3g1 f6g8");
+        assertEquals(new State().getZobristKey(), afterKnightsDance.getZobristKey());
+        assertNotEquals(new State().getZobristKey(), parseUciPosition("startpos moves g1f3 g8f6 f3g1").getZobristKey());
+        assertNotEquals(new State().getZobristKey(),
+                parseUciPosition("startpos moves g1f3 g8f6 h1g1 h8g8 g1h1 g8h8 f3g1 f6g8").getZobristKey());
+        State afterDoublePush = parseUciPosition("4k3/8/8/8/3p4/8/4P3/4K3 w - - 0 1 moves e2e4");
+        assertEquals(FEN.parse("4k3/8/8/8/3pP3/8/8/4K3 b - e3 0 1").getZobristKey(), afterDoublePush.getZobristKey());
+        assertNotEquals(FEN.parse("4k3/8/8/8/3pP3/8/8/4K3 b - - 0 1").getZobristKey(), afterDoublePush.getZobristKey());
+        // null move passes the turn and clears en passant square
+        afterDoublePush.makeNullMove();
+        assertEquals(FEN.parse("4k3/8/8/8/3pP3/8/8/4K3 w - - 0 1").getZobristKey(), afterDoublePush.getZobristKey());
+        afterDoublePush.unmakeMove();
+        assertEquals(FEN.parse("4k3/8/8/8/3pP3/8/8/4K3 b - e3 0 1").getZobristKey(), afterDoublePush.getZobristKey());
+    }
+
+    @Test
+    public void staticExchangeTest() {
+        // undefended pawn
+        assertTrue(isExchangeAtLeast("4k3/8/8/3p4/8/8/8/3QK3 w - - 0 1", "d1d5", 100));
+        assertFalse(isExchangeAtLeast("4k3/8/8/3p4/8/8/8/3QK3 w - - 0 1", "d1d5", 101));
+        // pawn defended by pawn
+        assertFalse(isExchangeAtLeast("4k3/8/2p5/3p4/8/8/8/3QK3 w - - 0 1", "d1d5", 0));
+        // rook behind rook recaptures
+        assertTrue(isExchangeAtLeast("3rk3/8/8/3p4/8/8/3R4/3R3K w - - 0 1", "d2d5", 100));
+        assertFalse(isExchangeAtLeast("3rk3/8/8/3p4/8/8/3R4/3R3K w - - 0 1", "d2d5", 101));
+        assertFalse(isExchangeAtLeast("3rk3/8/8/3p4/8/8/3R4/7K w - - 0 1", "d2d5", 0));
+        // bishop uncovered by the capturing bishop recaptures
+        assertFalse(isExchangeAtLeast("4k3/8/8/4p3/3B4/2b5/8/7K w - - 0 1", "d4e5", 0));
+        // promotions
+        assertTrue(isExchangeAtLeast("4k3/P7/8/8/8/8/8/4K3 w - - 0 1", "a7a8q", 800));
+        assertFalse(isExchangeAtLeast("1r2k3/P7/8/8/8/8/8/4K3 w - - 0 1", "a7a8q", 0));
+        assertTrue(isExchangeAtLeast("1r2k3/P7/8/8/8/8/8/4K3 w - - 0 1", "a7b8q", 1300));
+        // king recaptures only an undefended piece
+        assertFalse(isExchangeAtLeast("4k3/3p4/8/8/8/8/8/3R3K w - - 0 1", "d1d7", 0));
+        assertTrue(isExchangeAtLeast("4k3/3p4/8/8/8/8/3R4/3R3K w - - 0 1", "d2d7", 100));
+        // en passant
+        assertTrue(isExchangeAtLeast("4k3/8/8/3pP3/8/8/8/4K3 w - d6 0 1", "e5d6", 100));
+        assertFalse(isExchangeAtLeast("4k3/2p5/8/3pP3/8/8/8/4K3 w - d6 0 1", "e5d6", 1));
+    }
+
+    private boolean isExchangeAtLeast(String fen, String lanMove, int threshold) {
+        State state = FEN.parse(fen);
+        return state.isExchangeAtLeast(Lan.parse(state, lanMove), threshold);
+    }
+
+    @Test
+    public void quietChecksGenerationTest() {
+        // discovered checks by pawn, knight, bishop, rook and king, pinned pieces and promotions
+        String[] fens = {
+                "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+                "4k3/8/4N3/8/4R3/8/8/4K3 w - - 0 1",
+                "7k/8/5P2/8/3B4/8/1B6/K7 w - - 0 1",
+                "k7/8/2R5/8/K3Q2r/8/8/8 w - - 0 1",
+                "4k3/8/8/8/8/8/8/R3K2Q w - - 0 1",
+                "1k6/1P6/8/8/8/8/8/1R4K1 w - - 0 1",
+                "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+        };
+        Random random = new Random(0);
+        int[] moves = new int[State.MAX_LEGAL_MOVES];
+        int[] checks = new int[State.MAX_LEGAL_MOVES];
+        int[] expectedChecks = new int[State.MAX_LEGAL_MOVES];
+        for (String fen : fens) {
+            for (int game = 0; game < 50; game++) {
+                State state = FEN.parse(fen);
+                for (int ply = 0; ply < 40; ply++) {
+                    int checksCount = state.generateLegalMoves(checks, State.GeneratorMode.CHECKS);
+                    assertEquals(checksCount, state.countLegalMoves(State.GeneratorMode.CHECKS));
+                    int movesCount = state.generateLegalMoves(moves, State.GeneratorMode.QUIET_MOVES);
+                    int expectedChecksCount = 0;
+                    for (int i = 0; i < movesCount && !state.isKingInCheck(); i++) {
+                        state.makeMove(moves[i]);
+                        if (state.isKingInCheck() && !Move.isCastling(moves[i])) {
+                            expectedChecks[expectedChecksCount++] = moves[i];
+                        }
+                        state.unmakeMove();
+                    }
+                    int[] actual = Arrays.copyOf(checks, checksCount);
+                    int[] expected = Arrays.copyOf(expectedChecks, expectedChecksCount);
+                    Arrays.sort(actual);
+                    Arrays.sort(expected);
+                    assertArrayEquals("Quiet checks in " + state, expected, actual);
+
+                    movesCount = state.generateLegalMoves(moves, State.GeneratorMode.ALL_MOVES);
+                    if (movesCount == 0) {
+                        break;
+                    }
+                    state.makeMove(moves[random.nextInt(movesCount)]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parallelPerftTest() {
+        assertEquals(4865609, ParallelPerft.perft(new State(), 5, State.GeneratorMode.ALL_MOVES, 4));
+        assertEquals(4085603, ParallelPerft.perft(FEN.parse("r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1"),
+                4, State.GeneratorMode.ALL_MOVES, 4));
+        assertEquals(674624, ParallelPerft.perft(FEN.parse("8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1"),
+                5, State.GeneratorMode.ALL_MOVES, 3));
+        assertEquals(1, ParallelPerft.perft(new State(), 0, State.GeneratorMode.ALL_MOVES, 2));
+        assertEquals(20, ParallelPerft.perft(new State(), 1, State.GeneratorMode.ALL_MOVES, 2));
+    }
+
+    @Test
+    public void hashedPerftTest() {
+        State kiwipete = FEN.parse("r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1");
+        PerftCache cache = new PerftCache(4);
+        assertEquals(4865609, Scorer.perft(new State(), 5, State.GeneratorMode.ALL_MOVES, cache));
+        assertTrue(cache.getHits() > 0);
+        assertEquals(4085603, ParallelPerft.perft(kiwipete, 4, State.GeneratorMode.ALL_MOVES, 4, new PerftCache(4)));
+        assertEquals(Scorer.perft(kiwipete, 4, State.GeneratorMode.TACTICAL_MOVES),
+                Scorer.perft(kiwipete, 4, State.GeneratorMode.TACTICAL_MOVES, new PerftCache(4)));
+        assertEquals(Scorer.perft(kiwipete, 4, State.GeneratorMode.QUIET_MOVES),
+                ParallelPerft.perft(kiwipete, 4, State.GeneratorMode.QUIET_MOVES, 2, new PerftCache(4)));
+    }
+
+    @Test
+    public void transpositionTableAgeTest() {
+        TranspositionTable table = new TranspositionTable(1);
+        int move = Lan.parse(new State(), "e2e4");
+        // age wraps around after 8 searches, every value of it must keep the other fields intact
+        for (int search = 0; search < 10; search++) {
+            table.newSearch();
+            long key = 0x1234_5678_9ABC_DEF0L + search;
+            for (int score : new int[] {37, -37, Scorer.LOST + 5, -Scorer.LOST - 5}) {
+                table.store(key, move, score, 7, TranspositionTable.LOWER_BOUND);
+                long data = table.probe(key);
+                assertEquals(score, TranspositionTable.getScore(data));
+                assertEquals(move, TranspositionTable.getMove(data));
+                assertEquals(7, TranspositionTable.getDepth(data));
+                assertEquals(TranspositionTable.LOWER_BOUND, TranspositionTable.getBound(data));
+            }
+        }
+    }
+
+    @Test
+    public void transpositionTableConcurrencyTest() throws InterruptedException {
+        long[] keys = randomGameKeys(new String[] {
+                "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+                "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+                "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+                "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+        }, 500, 60);
+        // small table so that threads keep overwriting the same buckets
+        TranspositionTable table = new TranspositionTable(1);
+        for (long key : keys) {
+            storeDerivedEntry(table, key);
+            assertDerivedEntry(key, table.probe(key));
+        }
+        table.clear();
+
+        AtomicInteger corruptEntries = new AtomicInteger();
+        AtomicInteger hits = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 2_000_000; i++) {
+                    long key = keys[random.nextInt(keys.length)];
+                    if (random.nextBoolean()) {
+                        storeDerivedEntry(table, key);
+                    } else {
+                        long data = table.probe(key);
+                        if (data != 0) {
+                            hits.incrementAndGet();
+                            if (!isDerivedEntry(key, data)) {
+                                corruptEntries.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(hits.get() > 0);
+        assertEquals(0, corruptEntries.get());
+    }
+
+    /**
+     * @return keys of positions of random games played from given positions
+     */
+    private long[] randomGameKeys(String[] fens, int gamesPerFen, int maxPlies) {
+        Random random = new Random(0);
+        long[] keys = new long[fens.length * gamesPerFen * maxPlies];
+        int keysCount = 0;
+        int[] moves = new int[State.MAX_LEGAL_MOVES];
+        for (String fen : fens) {
+            for (int game = 0; game < gamesPerFen; game++) {
+                State state = FEN.parse(fen);
+                for (int ply = 0; ply < maxPlies; ply++) {
+                    int movesCount = state.generateLegalMoves(moves, State.GeneratorMode.ALL_MOVES);
+                    if (movesCount == 0) {
+                        break;
+                    }
+                    state.makeMove(moves[random.nextInt(movesCount)]);
+                    keys[keysCount++] = state.getZobristKey();
+                }
+            }
+        }
+        return Arrays.copyOf(keys, keysCount);
+    }
+
+    /**
+     * Stores entry whose every field is derived from the key so that a torn entry is recognizable
+     */
+    private static void storeDerivedEntry(TranspositionTable table, long key) {
+        table.store(key, derivedMove(key), (int) (key >> 40), (int) (key >>> 20) & 0x1F,
+                1 + (int) ((key >>> 32) & 0xFF) % 3);
+    }
+
+    private static int derivedMove(long key) {
+        return (int) key & 0x1F_FFFF | 1;
+    }
+
+    private static boolean isDerivedEntry(long key, long data) {
+        return TranspositionTable.getMove(data) == derivedMove(key)
+                && TranspositionTable.getScore(data) == (int) (key >> 40)
+                && TranspositionTable.getDepth(data) == ((int) (key >>> 20) & 0x1F)
+                && TranspositionTable.getBound(data) == 1 + (int) ((key >>> 32) & 0xFF) % 3;
+    }
+
+    private static void assertDerivedEntry(long key, long data) {
+        assertTrue("Wrong entry of key " + key + ": " + data, isDerivedEntry(key, data));
+    }
+
+    /**
+     * Mobility of both sides must be equal to legal moves counted with either side taking turn
+     */
+    private void testMobility(String whiteTurnFen, String blackTurnFen) {
+        State whiteTurn = FEN.parse(whiteTurnFen);
+        State blackTurn = FEN.parse(blackTurnFen);
+        assertEquals(whiteTurn.countLegalMoves(), whiteTurn.countMobility(State.WHITE));
+        assertEquals(blackTurn.countLegalMoves(), whiteTurn.countMobility(State.BLACK));
+        assertEquals(whiteTurn.countLegalMoves(), blackTurn.countMobility(State.WHITE));
+        assertEquals(blackTurn.countLegalMoves(), blackTurn.countMobility(State.BLACK));
+    }
+
     private void debugTestPosition(State position, int depth, long expectedLegalMoves, State.GeneratorMode mode) {
         long actualLegalMoves = Scorer.perft(position, depth, mode);
         if (expectedLegalMoves != actualLegalMoves) {